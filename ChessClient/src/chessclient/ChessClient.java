@@ -24,6 +24,7 @@
  */
 package chessclient;
 
+import chesscore.Game;
 import java.io.*;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -56,6 +57,8 @@ public class ChessClient extends JFrame {
     private JButton btRequest = new JButton("Request Game");
     private JButton btRefresh = new JButton("Refresh user list");
     private JButton btResign = new JButton("Resign  ");
+    private JButton btSeek = new JButton("Find opponent");
+    private JButton btWatch = new JButton("Watch game");
     private JLabel serverLabel = new JLabel("Chess server: ");
     private JTextField serverField = new JTextField("", 40);
     private JLabel userLabel = new JLabel("Username:      ");
@@ -72,6 +75,10 @@ public class ChessClient extends JFrame {
     boolean requestPlaced = false; // stores whether we have requested a game
     boolean color = false; // our color: false is white, true is black
     boolean inGame = false; // stores whether we are in a game
+    boolean watching = false; // stores whether we are watching someone else's game
+    String clockText = ""; // time left on both clocks, from the last clock message
+    long presenceVersion = -1; // the last version of the user list we heard about, -1 if we have none
+    String session = null; // token for picking up where we left off if the connection drops, from the server
     Game Chess; // our local copy of the chess game
 
     public ChessClient() {
@@ -89,6 +96,8 @@ public class ChessClient extends JFrame {
         btRequest.setFont(ccFont);
         btRefresh.setFont(ccFont);
         btResign.setFont(ccFont);
+        btSeek.setFont(ccFont);
+        btWatch.setFont(ccFont);
         serverLabel.setFont(ccFont);
         serverField.setFont(ccFont);
         userLabel.setFont(ccFont);
@@ -123,6 +132,8 @@ public class ChessClient extends JFrame {
         btRequest.addActionListener(new RequestListener());
         btRefresh.addActionListener(new RefreshListener());
         btResign.addActionListener(new ResignListener());
+        btSeek.addActionListener(new SeekListener());
+        btWatch.addActionListener(new WatchListener());
         connectPanel.add(btLogin, BorderLayout.CENTER);
 
         connectPanel.add(btRegister, BorderLayout.EAST);
@@ -131,6 +142,8 @@ public class ChessClient extends JFrame {
         buttonPanel.add(btRequest, BorderLayout.EAST);
         buttonPanel.add(btResign, BorderLayout.WEST);
         turnPanel.add(turnLabel, BorderLayout.CENTER);
+        turnPanel.add(btSeek, BorderLayout.EAST);
+        turnPanel.add(btWatch, BorderLayout.WEST);
         turnLabel.setHorizontalAlignment(JLabel.CENTER);
         playerPanel.add(chatRoom, BorderLayout.CENTER);
         userList.setMultipleMode(false);
@@ -187,18 +200,30 @@ public class ChessClient extends JFrame {
     
     /** Displays the current turn by modifying a dedicated JLabel. */
     public void updateTurn() {
-        if (!inGame) { // if we're not in a game, don't display anything
+        if (watching) { // spectators just see whose move it is
+            turnLabel.setText((Chess.getTurn() ? "Black" : "White") + " to move.");
+        } else if (!inGame) { // if we're not in a game, don't display anything
             turnLabel.setText(" ");
         } else {
             if (Chess.getTurn() == color) { // if it's our turn, say so
-                turnLabel.setText("It's your turn" + (Chess.inCheck(color) ? ", and you're in check." : "!")); // if we're in check, say that as well
+                turnLabel.setText("It's your turn" + (Chess.inCheck(color) ? ", and you're in check." : "!") + clockText); // if we're in check, say that as well
             } else {
-                turnLabel.setText("It's your opponent's turn.");
+                turnLabel.setText("It's your opponent's turn." + clockText);
                 // if it's not our turn, we don't need to worry about check
             }
         }
     }
     
+    /** Shows the time left from a clock message: white's and black's milliseconds. */
+    public void updateClock(String data) {
+        String[] times = data.split(" ");
+        long white = Long.parseLong(times[0]) / 1000;
+        long black = Long.parseLong(times[1]) / 1000;
+        clockText = "   White " + white / 60 + ":" + String.format("%02d", white % 60)
+                + "   Black " + black / 60 + ":" + String.format("%02d", black % 60);
+        updateTurn();
+    }
+    
     /** Prints to the message log. */
     private void out(String message) {
         chatRoom.append(message + CRLF);
@@ -214,9 +239,45 @@ public class ChessClient extends JFrame {
         }
     }
     
+    /** Applies a presence update from the server, or asks for a fresh list if we missed one. */
+    public void updatePresence(String data) {
+        String[] parts = data.split("\t");
+        long version = Long.parseLong(parts[0]);
+        if (parts.length > 1 && parts[1].equals("*")) { // a full snapshot
+            String[] users = new String[parts.length - 2];
+            System.arraycopy(parts, 2, users, 0, users.length);
+            displayChatRoom(users);
+            presenceVersion = version;
+            return;
+        }
+        if (presenceVersion == -1 || presenceVersion + parts.length - 1 != version) { // we missed something
+            presenceVersion = -1;
+            send("subscribe" + CRLF); // the server will send a full snapshot
+            return;
+        }
+        for (int i = 1; i < parts.length; i++) { // each change is +name or -name
+            String user = parts[i].substring(1);
+            if (user.equals(username)) {
+                continue; // we never list ourselves
+            }
+            if (parts[i].charAt(0) == '+') {
+                userList.add(user);
+            } else {
+                String[] items = userList.getItems();
+                for (int j = 0; j < items.length; j++) {
+                    if (items[j].equals(user)) {
+                        userList.remove(j);
+                        break;
+                    }
+                }
+            }
+        }
+        presenceVersion = version;
+    }
+    
     /** Update the board display to reflect the current game state. */
     public void displayGame() {
-        if (!inGame) { // if we're not in a game, leave the board as we found it
+        if (!inGame && !watching) { // if we're not in a game, leave the board as we found it
             return; // even if we were in a game, don't clear it so you can see how you won/lost
         }
 
@@ -353,16 +414,56 @@ public class ChessClient extends JFrame {
         }
     }
     
+    /** Starts showing someone else's game: white's name, black's name and the game state. */
+    private void startWatching(String[] data) {
+        watching = true;
+        color = false; // spectators see white at the bottom
+        Chess = new Game(data[2]);
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                board[i][j].rank = i;
+                board[i][j].file = j;
+            }
+        }
+        out("Watching " + data[0] + " (white) against " + data[1] + " (black).");
+        displayGame();
+    }
+    
+    /** Plays a move in the game we are watching. */
+    private void watchMove(String data) {
+        if (!watching) {
+            return;
+        }
+        if (data.length() == 5) {
+            Chess.move(data.charAt(0) - '0', data.charAt(1) - '0', data.charAt(2) - '0', data.charAt(3) - '0', data.charAt(4));
+        } else {
+            Chess.move(data.charAt(0) - '0', data.charAt(1) - '0', data.charAt(2) - '0', data.charAt(3) - '0');
+        }
+        displayGame();
+    }
+    
+    /** The game we were watching has ended, with a result like 1-0. */
+    private void watchOver(String result) {
+        watching = false;
+        turnLabel.setText(result.equals("1-0") ? "White won." : result.equals("0-1") ? "Black won." : "The game ended in a draw.");
+    }
+    
     /** Starts a new game sent to us by the server. */
     private void startGame(String[] data) {
+        if (watching) { // our own game comes first
+            send("unwatch" + CRLF);
+            watching = false;
+        }
         color = data[0].equals("black"); // set our color
         requestPlaced = false; // reset this variable
         inGame = true; // we are now in a game
+        clockText = ""; // the server sends the clock if the game has one
         if (data.length == 1) { // if the only parameter is color
             Chess = new Game(); // we are starting a fresh game
             out("The game has started and you are the " + (color ? "black" : "white") + " player.");
         } else { // otherwise we are resuming a previous game
-            Chess = new Game(data[1]); // initialize to the specified game state
+            // the state, followed by the moves that led to it if the server sends them
+            Chess = new Game(data.length > 2 ? data[1] + "\t" + data[2] : data[1]);
         }
         
         // the default board orientation for the Game class is with white at the bottom
@@ -421,6 +522,27 @@ public class ChessClient extends JFrame {
         }
     }
     
+    /** After losing the server, connects again and resumes the session. False if we can't. */
+    private boolean reconnect() {
+        if (session == null) { // never logged in, nothing to resume
+            return false;
+        }
+        for (int attempt = 0; attempt < 5; attempt++) { // back off a little more each time
+            out("Lost the server, reconnecting...");
+            try {
+                Thread.sleep(1000L << attempt);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            Socket old = socket;
+            connectToServer();
+            if (socket != old) { // tell the server how many moves of our game we have, so it only sends what we missed
+                return send("resume " + username + "\t" + session + "\t" + (inGame ? Chess.historyLength() : -1) + CRLF);
+            }
+        }
+        return false;
+    }
+
     /** Confirms the user's resignation, and sends it to the server. */
     public void askResign() {
         Object[] options = {"Yes", "No"};
@@ -439,7 +561,18 @@ public class ChessClient extends JFrame {
             try { // need this for isBound
                 while (cc.socket.isBound()) { // once the socket is bound to the server, loop forever
                     try {
-                        String response = cc.fromServer.readLine(); // block on server response
+                        String response;
+                        try {
+                            response = cc.fromServer.readLine(); // block on server response
+                        } catch (IOException e) {
+                            response = null;
+                        }
+                        if (response == null) { // the connection dropped
+                            if (cc.reconnect()) {
+                                continue;
+                            }
+                            break;
+                        }
                         int space = response.indexOf(' ');
                         String type, data = ""; // type indicates method to call in response, data is the parameters
                         if (response.contains(" ")) { // if our response is multiple "words"
@@ -452,6 +585,15 @@ public class ChessClient extends JFrame {
 
                         switch (type) { // call method in ChessClient based on type recieved
 
+                            case "session": // our token for resuming after a dropped connection
+                                cc.session = data;
+                                break;
+
+                            case "expired": // the server doesn't know our session any more, log in again
+                                cc.session = null;
+                                cc.loginToServer(false);
+                                break;
+
                             case "svrmsg": // Server has a message for the user
                                 cc.out("Server: " + data); // add "Server: " heading and print
                                 break;
@@ -464,6 +606,10 @@ public class ChessClient extends JFrame {
                                 cc.displayChatRoom(data.split("\t")); // display the user list
                                 break;
 
+                            case "presence": // someone logged in or off, or a full list after subscribing
+                                cc.updatePresence(data);
+                                break;
+
                             case "decline": // other user declined our game request
                                 cc.requestDeclined(); // tell the user
                                 break;
@@ -480,9 +626,29 @@ public class ChessClient extends JFrame {
                                 cc.oppMove(data); // update our board
                                 break;
 
+                            case "illegal": // the server refused our move, and sends the game as it has it next
+                                cc.out("Server: " + data + " isn't a legal move here.");
+                                break;
+
                             case "gameover": // the game has ended
                                 cc.gameOver(data);
                                 break;
+
+                            case "clock": // time left for both players
+                                cc.updateClock(data);
+                                break;
+
+                            case "watching": // the start of a game we asked to watch
+                                cc.startWatching(data.split("\t"));
+                                break;
+
+                            case "wmove": // a move in the game we are watching
+                                cc.watchMove(data);
+                                break;
+
+                            case "wover": // the game we are watching has ended
+                                cc.watchOver(data);
+                                break;
                         }
                     } catch (Exception e) {
                         break;
@@ -599,6 +765,30 @@ public class ChessClient extends JFrame {
         }
     }
 
+    class SeekListener implements ActionListener { // used on the "Find opponent" button
+        
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (inGame) { // one game at a time
+                out("You cannot look for a game while in a game.");
+            } else {
+                send("seek" + CRLF); // the server pairs us with someone of a similar rating
+            }
+        }
+    }
+
+    class WatchListener implements ActionListener { // used on the "Watch game" button
+        
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (inGame) { // one game at a time
+                out("You cannot watch a game while in a game.");
+            } else if (userList.getSelectedItem() != null) { // if we have a user selected
+                send("watch " + userList.getSelectedItem() + CRLF); // the server sends their game
+            }
+        }
+    }
+
     class RefreshListener implements ActionListener { // used on the "Refresh user list" button
         
         @Override
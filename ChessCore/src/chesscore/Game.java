@@ -20,8 +20,9 @@
  * To check what piece it is, do space % 8.
  * 
  */
-package ChessServer;
+package chesscore;
 
+import java.util.Arrays;
 //import java.io.*;
 //import java.net.*;
 //import java.util.*;
@@ -49,10 +50,39 @@ public class Game {
 	//The 8 different coordinate modifiers for how a knight moves.
 	private final int[] knightRank = {-1, -2, -2, -1, 1, 2, 2, 1};
 	private final int[] knightFile = {2, 1, -1, -2, -2, -1, 1, 2};
-	private final String PIECES = "pnbrqk";
+	private static final String PIECES = "pnbrqk";
 	private final String STARTING_BOARD = "RNBQKBNRPPPPPPPP................"
 			+ "................pppppppprnbqkbnr";
 	private int[][] grid;
+	/*
+	 * Every move made in this game, packed into 16 bits each: start square in
+	 * bits 0-5, end square in bits 6-11 (rank * 8 + file), and the promotion
+	 * piece in bits 12-14 as an index into PIECES, or 0 for none.
+	 */
+	private short[] history;
+	private int historyLength;
+	private String startState; //The 70-char state the history starts from
+	/*
+	 * The legal moves in the current position, sorted, worked out the first
+	 * time something asks and thrown away by anything that changes the
+	 * position.  Checking a move and then testing for mate after it share one
+	 * of these per position.
+	 */
+	private short[] legal;
+	private int[][] scratch; //For putInCheck, so trying a move doesn't allocate a board
+	/*
+	 * Random numbers for Zobrist hashing: one per piece per space, then one for
+	 * black to move, four for the castling rights and eight for en passant files.
+	 * Seeded so the hashes are the same every run and can be stored.
+	 */
+	private static final long[] ZOBRIST = new long[14 * 64 + 13];
+
+	static {
+		java.util.Random random = new java.util.Random(1729);
+		for (int i = 0; i < ZOBRIST.length; i++) {
+			ZOBRIST[i] = random.nextLong();
+		}
+	}
 
 	//Constructs a new game
 	public Game() {
@@ -68,10 +98,29 @@ public class Game {
 		blackKingRank = 0;
 		blackKingFile = 4;
 		setBoard(STARTING_BOARD);
+		history = new short[16];
+		historyLength = 0;
+		startState = gameState();
 	}
 
-	//Constructs a game in progress
+	/*
+	 * Constructs a game in progress.  If the state is followed by a tab and a
+	 * history (see record()), the game is rebuilt by replaying the history.
+	 */
 	public Game(String data) {
+		if (data.length() > 71) {
+			copyFrom(new Game(data.substring(71, 141)));
+			history = new short[Math.max(16, (data.length() - 141) / 4)];
+			historyLength = 0;
+			startState = data.substring(71, 141);
+			for (int i = 141; i + 4 <= data.length(); i += 4) {
+				move((short) Integer.parseInt(data.substring(i, i + 4), 16));
+			}
+			return;
+		}
+		history = new short[16];
+		historyLength = 0;
+		startState = data.substring(0, 70);
 		grid = new int[8][8];
 		setBoard(data.substring(0, 64));
 		turn = data.charAt(64) == '1';
@@ -107,6 +156,63 @@ public class Game {
 		}
 	}
 	
+	//Copies the position (not the history) of another game into this one.
+	private void copyFrom(Game other) {
+		legal = null;
+		grid = new int[8][];
+		for (int i = 0; i < 8; i++) {
+			grid[i] = other.grid[i].clone();
+		}
+		turn = other.turn;
+		enPassantFile = other.enPassantFile;
+		whiteQueenCastle = other.whiteQueenCastle;
+		whiteKingCastle = other.whiteKingCastle;
+		blackQueenCastle = other.blackQueenCastle;
+		blackKingCastle = other.blackKingCastle;
+		whiteKingRank = other.whiteKingRank;
+		whiteKingFile = other.whiteKingFile;
+		blackKingRank = other.blackKingRank;
+		blackKingFile = other.blackKingFile;
+	}
+
+	//A 64-bit hash of the position, the same for equal positions no matter how they were reached.
+	public long hash() {
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			for (int j = 0; j < 8; j++) {
+				if (grid[i][j] != -1) {
+					hash ^= ZOBRIST[grid[i][j] * 64 + i * 8 + j];
+				}
+			}
+		}
+		int flags = 14 * 64;
+		hash ^= turn ? ZOBRIST[flags] : 0;
+		hash ^= whiteQueenCastle ? ZOBRIST[flags + 1] : 0;
+		hash ^= whiteKingCastle ? ZOBRIST[flags + 2] : 0;
+		hash ^= blackQueenCastle ? ZOBRIST[flags + 3] : 0;
+		hash ^= blackKingCastle ? ZOBRIST[flags + 4] : 0;
+		if (canTakeEnPassant()) { //Only counts if a pawn is actually next to it, like in FEN
+			hash ^= ZOBRIST[flags + 5 + enPassantFile];
+		}
+		return hash;
+	}
+
+	//Whether the side to move has a pawn next to one that just advanced two spaces.
+	public boolean canTakeEnPassant() {
+		if (enPassantFile == -1) {
+			return false;
+		}
+		int rank = turn ? 4 : 3;
+		int pawn = turn ? 8 : 0;
+		return (enPassantFile > 0 && grid[rank][enPassantFile - 1] == pawn)
+				|| (enPassantFile < 7 && grid[rank][enPassantFile + 1] == pawn);
+	}
+
+	//Whether either side could still castle some time.
+	public boolean canCastle() {
+		return whiteQueenCastle || whiteKingCastle || blackQueenCastle || blackKingCastle;
+	}
+
 	public boolean getTurn() {
 		return turn;
 	}
@@ -149,25 +255,128 @@ public class Game {
 		return state;
 	}
 
+	/*
+	 * The state, a tab, then the starting state and every move as 4 hex digits.
+	 * Game(String) reads either this or a plain gameState().
+	 */
+	public String record() {
+		StringBuilder record = new StringBuilder(141 + 4 * historyLength);
+		record.append(gameState()).append('\t').append(startState);
+		for (int i = 0; i < historyLength; i++) {
+			String hex = Integer.toHexString(history[i] & 0xffff);
+			for (int j = hex.length(); j < 4; j++) {
+				record.append('0');
+			}
+			record.append(hex);
+		}
+		return record.toString();
+	}
+
+	public int historyLength() {
+		return historyLength;
+	}
+
+	public short historyMove(int ply) {
+		return history[ply];
+	}
+
+	public short[] history() {
+		return Arrays.copyOf(history, historyLength);
+	}
+
+	public static short encodeMove(int startRank, int startFile, int endRank, int endFile, char promotion) {
+		int piece = promotion == '\0' ? 0 : PIECES.indexOf(Character.toLowerCase(promotion));
+		return (short) ((startRank * 8 + startFile) | (endRank * 8 + endFile) << 6 | piece << 12);
+	}
+
+	//Turns a packed move into the same "6444" or "1707q" form the clients send.
+	public static String moveString(short move) {
+		int start = move & 63;
+		int end = (move >> 6) & 63;
+		int piece = (move >> 12) & 7;
+		String text = "" + (start / 8) + (start % 8) + (end / 8) + (end % 8);
+		return piece == 0 ? text : text + PIECES.charAt(piece);
+	}
+
+	//Reads a move in the form moveString writes, or -1, which is never legal, if it isn't one.
+	public static short parseMove(String text) {
+		if (text.length() != 4 && text.length() != 5) {
+			return -1;
+		}
+		for (int i = 0; i < 4; i++) {
+			if (text.charAt(i) < '0' || text.charAt(i) > '7') {
+				return -1;
+			}
+		}
+		char promotion = text.length() == 5 ? text.charAt(4) : '\0';
+		if (promotion != '\0' && "nbrq".indexOf(Character.toLowerCase(promotion)) == -1) {
+			return -1;
+		}
+		return encodeMove(text.charAt(0) - '0', text.charAt(1) - '0', text.charAt(2) - '0', text.charAt(3) - '0',
+				promotion);
+	}
+
+	//All the moves so far, separated by spaces.
+	public String exportMoves() {
+		StringBuilder moves = new StringBuilder(5 * historyLength);
+		for (int i = 0; i < historyLength; i++) {
+			if (i > 0) {
+				moves.append(' ');
+			}
+			moves.append(moveString(history[i]));
+		}
+		return moves.toString();
+	}
+
+	//A new game at the position after the first few moves of this one.
+	public Game replay(int plies) {
+		Game game = new Game(startState);
+		for (int i = 0; i < plies && i < historyLength; i++) {
+			game.move(history[i]);
+		}
+		return game;
+	}
+
+	//Takes back the last move.  Moves can't be unmade directly, so this replays the rest.
+	public boolean undo() {
+		if (historyLength == 0) {
+			return false;
+		}
+		copyFrom(replay(historyLength - 1));
+		historyLength--;
+		return true;
+	}
+
 	//These two functions are for testing.
 	public void print() {
 		print(grid);
 	}
 	
 	public void print(int[][] board) {
+		System.out.print(board(board));
+	}
+
+	//The board as eight lines of text, black in capitals.
+	public String board() {
+		return board(grid);
+	}
+
+	public String board(int[][] board) {
+		StringBuilder sb = new StringBuilder(72);
 		for (int i = 0; i < 8; i++) {
 			for (int j = 0; j < 8; j++) {
 				int space = board[i][j];
 				if (space == -1) {
-					System.out.print('.');
+					sb.append('.');
 				} else if (space / 8 == 1) {
-					System.out.print(Character.toUpperCase(PIECES.charAt(space % 8)));
+					sb.append(Character.toUpperCase(PIECES.charAt(space % 8)));
 				} else {
-					System.out.print(PIECES.charAt(space % 8));
+					sb.append(PIECES.charAt(space % 8));
 				}
 			}
-			System.out.println();
+			sb.append('\n');
 		}
+		return sb.toString();
 	}
 
 	//Overloaded to make checking for threats on theoretical grids easier.
@@ -241,9 +450,22 @@ public class Game {
 		move(startRank, startFile, endRank, endFile, '\0');
 	}
 	
+	public void move(short move) {
+		int start = move & 63;
+		int end = (move >> 6) & 63;
+		int piece = (move >> 12) & 7;
+		move(start / 8, start % 8, end / 8, end % 8, piece == 0 ? '\0' : PIECES.charAt(piece));
+	}
+
 	public void move(int startRank, int startFile, int endRank, int endFile, char promotion) {
 		//This function assumes the move is legal. Calling it with illegal arguments will have unintended results.
 
+		if (historyLength == history.length) {
+			history = Arrays.copyOf(history, historyLength * 2);
+		}
+		history[historyLength++] = encodeMove(startRank, startFile, endRank, endFile, promotion);
+		legal = null;
+
 		int type = grid[startRank][startFile] % 8;
 		//En passant capturing
 		if (type == 0 && startFile != endFile && grid[endRank][endFile] == -1) { //Pawn is moving diagonally to empty space
@@ -312,11 +534,17 @@ public class Game {
 		//It simply returns a grid of what the board would look like if this move would happen.
 		//Again, it assumes the move is legal.
 
-		int[][] board = new int[8][];
+		int[][] board = new int[8][8];
+		theoreticalMove(board, startRank, startFile, endRank, endFile);
+		return board;
+	}
+
+	//Fills the board with the position after the move.
+	private void theoreticalMove(int[][] board, int startRank, int startFile, int endRank, int endFile) {
 		for (int i = 0; i < 8; i++) {
-			board[i] = grid[i].clone();
+			System.arraycopy(grid[i], 0, board[i], 0, 8);
 		}
-		
+
 		int type = board[startRank][startFile] % 8;
 		//En passant
 		if (type == 0 && startFile != endFile && board[endRank][endFile] == -1) {
@@ -337,7 +565,6 @@ public class Game {
 		
 		board[endRank][endFile] = board[startRank][startFile];
 		board[startRank][startFile] = -1;
-		return board;
 	}
 	
 	public boolean hasLegalMove(boolean color) {
@@ -418,11 +645,128 @@ public class Game {
 		return false;
 	}
 
+	//Every legal move for the side to move, packed the same way as the history, in ascending order.
+	public short[] legalMoves() {
+		return legal().clone();
+	}
+
+	//Whether a packed move is one of the legal moves here.  Pawns reaching the last rank have to say what they become.
+	public boolean isLegal(short move) {
+		return Arrays.binarySearch(legal(), move) >= 0;
+	}
+
+	private short[] legal() {
+		if (legal == null) {
+			legal = generateMoves();
+			Arrays.sort(legal);
+		}
+		return legal;
+	}
+
+	/*
+	 * Candidates are generated the same way as in hasLegalMove, but instead of
+	 * stopping at the first legal one this collects all of them, with one entry
+	 * per promotion piece.
+	 */
+	private short[] generateMoves() {
+		short[] moves = new short[48];
+		int count = 0;
+		int[] targets = new int[32]; //rank * 8 + file of each candidate for one piece
+		boolean checked = inCheck(turn);
+		int kingRank = turn ? blackKingRank : whiteKingRank;
+		int kingFile = turn ? blackKingFile : whiteKingFile;
+		for (int rank = 0; rank < 8; rank++) {
+			for (int file = 0; file < 8; file++) {
+				if (grid[rank][file] == -1 || (grid[rank][file] / 8 == 1) != turn) {
+					continue;
+				}
+				int type = grid[rank][file] % 8;
+				int found = 0;
+				//A piece that isn't lined up with its king can't be pinned, so unless we're in check its moves can't be either
+				boolean free = !checked && type != 5 && rank != kingRank && file != kingFile
+						&& Math.abs(rank - kingRank) != Math.abs(file - kingFile);
+				if (type == 0) {
+					int dir = turn ? 1 : -1;
+					for (int j = -1; j <= 1; j++) {
+						if (legalMove(rank, file, rank + dir, file + j, free)) {
+							targets[found++] = (rank + dir) * 8 + file + j;
+						}
+					}
+					if (legalMove(rank, file, rank + 2 * dir, file, free)) {
+						targets[found++] = (rank + 2 * dir) * 8 + file;
+					}
+				} else if (type == 1) {
+					for (int i = 0; i < 8; i++) {
+						if (legalMove(rank, file, rank + knightRank[i], file + knightFile[i], free)) {
+							targets[found++] = (rank + knightRank[i]) * 8 + file + knightFile[i];
+						}
+					}
+				} else if (type == 5) {
+					for (int i = -1; i <= 1; i++) {
+						for (int j = -2; j <= 2; j++) { //Two files either way for castling
+							if ((i == 0 || Math.abs(j) < 2) && legalMove(rank, file, rank + i, file + j, free)) {
+								targets[found++] = (rank + i) * 8 + file + j;
+							}
+						}
+					}
+				} else { //Walks each way the piece goes instead of asking validMove about every space
+					for (int i = -1; i <= 1; i++) {
+						for (int j = -1; j <= 1; j++) {
+							if ((i == 0 && j == 0) || (type == 3 && i != 0 && j != 0) || (type == 2 && (i == 0 || j == 0))) {
+								continue;
+							}
+							for (int endRank = rank + i, endFile = file + j;
+									endRank >= 0 && endRank < 8 && endFile >= 0 && endFile < 8; endRank += i, endFile += j) {
+								int space = grid[endRank][endFile];
+								if (space != -1 && (space / 8 == 1) == turn) {
+									break;
+								}
+								if (free || !putInCheck(rank, file, endRank, endFile)) { //Keep going past moves that only fail for check
+									targets[found++] = endRank * 8 + endFile;
+								}
+								if (space != -1) {
+									break;
+								}
+							}
+						}
+					}
+				}
+				if (count + 4 * found > moves.length) {
+					moves = Arrays.copyOf(moves, Math.max(moves.length * 2, count + 4 * found));
+				}
+				for (int k = 0; k < found; k++) {
+					int endRank = targets[k] / 8;
+					int endFile = targets[k] % 8;
+					if (type == 0 && (endRank == 0 || endRank == 7)) {
+						moves[count++] = encodeMove(rank, file, endRank, endFile, 'q');
+						moves[count++] = encodeMove(rank, file, endRank, endFile, 'r');
+						moves[count++] = encodeMove(rank, file, endRank, endFile, 'b');
+						moves[count++] = encodeMove(rank, file, endRank, endFile, 'n');
+					} else {
+						moves[count++] = encodeMove(rank, file, endRank, endFile, '\0');
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(moves, count);
+	}
+
 	//Just a combination of validMove and putInCheck
 	public boolean legalMove(int startRank, int startFile, int endRank, int endFile) {
 		return validMove(startRank, startFile, endRank, endFile)
 				&& !putInCheck(startRank, startFile, endRank, endFile);
 	}
+
+	//The same, but skips the check test for a free piece unless it takes en passant, which can uncover the king too.
+	private boolean legalMove(int startRank, int startFile, int endRank, int endFile, boolean free) {
+		if (!validMove(startRank, startFile, endRank, endFile)) {
+			return false;
+		}
+		if (free && (grid[startRank][startFile] % 8 != 0 || startFile == endFile || grid[endRank][endFile] != -1)) {
+			return true;
+		}
+		return !putInCheck(startRank, startFile, endRank, endFile);
+	}
 	
 	//Check if this piece is allowed to move here (don't test for putting in check)
 	//This is the complicated and boring part
@@ -465,6 +809,7 @@ public class Game {
 					&& (grid[endRank][endFile] / 8 == 1) != color)) //Ending space is occupied by enemy
 					//EN PASSANT CAPTURING
 					|| (grid[endRank][endFile] == -1 //OR ending space is empty
+					&& startRank + dir == endRank && fileDist == 1 // and the pawn is moving diagonally
 					&& enPassantFile != -1 // and last move was a double pawn move
 					&& endFile == enPassantFile // and this pawn is moving to the same file
 					&& endRank == (color ? 5 : 2)))) { //and it's moving to the rank that's two spaces from the opponent's side
@@ -506,8 +851,8 @@ public class Game {
 				return false;
 			}
 		} else { //Type is bishop, rook, or queen
-			if (!((rankDist == fileDist && (type == 2 || type == 4)) //Rank and file movement are equal and it's a bishop or queen
-					|| ((rankDist == 0 || fileDist == 0) && (type == 3 || type == 4))
+			if (!(((rankDist == fileDist && (type == 2 || type == 4)) //Rank and file movement are equal and it's a bishop or queen
+					|| ((rankDist == 0 || fileDist == 0) && (type == 3 || type == 4)))
 					&& (grid[endRank][endFile] == -1 //Ending space is empty
 					|| (grid[endRank][endFile] / 8 == 1) != color))) { //Or one is 0 and it's a rook or queen
 				return false;
@@ -526,7 +871,11 @@ public class Game {
 
 	//Uses theoreticalMove to see if a move would put you in check.
 	public boolean putInCheck(int startRank, int startFile, int endRank, int endFile) {
-		int[][] theoreticalGrid = theoreticalMove(startRank, startFile, endRank, endFile);
+		if (scratch == null) {
+			scratch = new int[8][8];
+		}
+		int[][] theoreticalGrid = scratch;
+		theoreticalMove(theoreticalGrid, startRank, startFile, endRank, endFile);
 		boolean color = grid[startRank][startFile] / 8 == 1;
 		
 		int kingRank = color ? blackKingRank : whiteKingRank;
@@ -545,7 +894,7 @@ public class Game {
 	}
 	
 	public int checkmate(boolean color) {
-		if (!hasLegalMove(color)) {
+		if (color == turn ? legal().length == 0 : !hasLegalMove(color)) { //The side to move has its moves cached
 			if (inCheck(color)) {
 				return 1; //Checkmated
 			} else {
@@ -0,0 +1,104 @@
+/*
+ * An opening book: for each position, the moves played from it and how
+ * well they did, read from a file made by the server's BookBuilder.
+ *
+ * The file is a 16-byte header (magic, entry count, padding) and then one
+ * 16-byte entry per position and move:
+ *   long  position hash, see Game.hash()
+ *   long  move << 32 | weight, the move packed like Game's history
+ * sorted by hash, and by weight, heaviest first, within a position.  The
+ * file is memory-mapped and looked up by binary search, so a lookup reads
+ * a few pages and allocates nothing, and one book can be shared by any
+ * number of threads.
+ */
+package chesscore;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+public class OpeningBook {
+
+	public static final int MAGIC = 0x43484f42; //"CHOB"
+	public static final int HEADER = 16;
+	public static final short NONE = -1; //Out of book.  Never a legal move.
+
+	private final LongBuffer entries; //hash, move << 32 | weight, hash, ...
+	public final int size;
+
+	public OpeningBook(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (raf.length() < HEADER || map.getInt() != MAGIC) {
+				throw new IOException("Not an opening book: " + file);
+			}
+			size = map.getInt();
+			if ((long) size * 16 != raf.length() - HEADER) {
+				throw new IOException("Opening book is cut short: " + file);
+			}
+			map.position(HEADER);
+			entries = map.slice().asLongBuffer();
+		}
+	}
+
+	//The first entry for the position, or -1 if the book doesn't have it.
+	public int find(long hash) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries.get(mid * 2) < hash) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low < size && entries.get(low * 2) == hash ? low : -1;
+	}
+
+	public long hash(int entry) {
+		return entries.get(entry * 2);
+	}
+
+	public short move(int entry) {
+		return (short) (entries.get(entry * 2 + 1) >>> 32);
+	}
+
+	public int weight(int entry) {
+		return (int) entries.get(entry * 2 + 1);
+	}
+
+	//The move that did best from here, or NONE.
+	public short best(Game game) {
+		int entry = find(game.hash());
+		return entry == -1 ? NONE : move(entry);
+	}
+
+	/*
+	 * A move from here, each with a chance in proportion to its weight, or
+	 * NONE.  Roll is any random number, so picking allocates nothing.
+	 */
+	public short pick(Game game, int roll) {
+		long hash = game.hash();
+		int first = find(hash);
+		if (first == -1) {
+			return NONE;
+		}
+		long total = 0;
+		int end = first;
+		for (; end < size && hash(end) == hash; end++) {
+			total += weight(end);
+		}
+		if (total == 0) {
+			return move(first);
+		}
+		long left = Math.floorMod((long) roll, total);
+		for (int i = first; i < end; i++) {
+			left -= weight(i);
+			if (left < 0) {
+				return move(i);
+			}
+		}
+		return move(first);
+	}
+}
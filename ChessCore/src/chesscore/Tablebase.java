@@ -0,0 +1,223 @@
+/*
+ * Endgame tablebases: the exact result of every position with a few pieces,
+ * read from files made by TablebaseBuilder.
+ *
+ * A table covers one set of material, named like "KRK" or "KPKP": the
+ * white pieces then the black ones, each side's king first and the rest in
+ * the order of ORDER.  A position with the colors the other way round is
+ * looked up in the table for the mirror image.  The file is a 16-byte
+ * header (magic, piece count, the name padded with spaces) and then one
+ * byte per position, indexed by index().  A byte is 0 for a draw, or 1 +
+ * the plies to mate with best play: odd plies mean the side to move mates,
+ * even ones that it gets mated.
+ *
+ * Positions where someone can still castle or take en passant aren't in
+ * the tables.  Inside a table a pawn that just advanced two spaces can't be
+ * taken en passant either, which only matters with pawns on both sides.
+ */
+package chesscore;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+public class Tablebase {
+
+	public static final int MAGIC = 0x43485442; //"CHTB"
+	public static final int HEADER = 16;
+	public static final int MAX_PIECES = 5;
+	public static final String ORDER = "KQRBNP";
+	public static final int MATE = 1000; //probe() is MATE minus the plies to mate for a win
+	public static final int UNKNOWN = Integer.MIN_VALUE;
+	public static final short NONE = -1; //From best(), for positions not in a table.  Never a legal move.
+	private static final String PIECES = "pnbrqk"; //Game's piece numbers
+
+	//One table, memory-mapped.
+	static class Table {
+
+		final String name;
+		final int[] pieces; //What is in each slot, numbered like Game's grid: white king first, then by ORDER
+		final MappedByteBuffer values;
+
+		Table(File file) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (raf.length() < HEADER || map.getInt() != MAGIC) {
+					throw new IOException("Not a tablebase: " + file);
+				}
+				int count = map.getInt();
+				byte[] name = new byte[8];
+				map.get(name);
+				this.name = new String(name, StandardCharsets.US_ASCII).trim();
+				pieces = pieces(this.name);
+				if (pieces == null || pieces.length != count || raf.length() != HEADER + size(count)) {
+					throw new IOException("Tablebase is damaged: " + file);
+				}
+				map.position(HEADER);
+				values = map.slice();
+			}
+		}
+	}
+
+	private final HashMap<String, Table> tables = new HashMap<>();
+
+	//Opens every .tb file in the directory.
+	public Tablebase(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("No tablebase directory " + dir);
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(".tb")) {
+				Table table = new Table(file);
+				tables.put(table.name, table);
+			}
+		}
+	}
+
+	public int size() {
+		return tables.size();
+	}
+
+	public boolean has(String name) {
+		return tables.containsKey(name) || tables.containsKey(flip(name));
+	}
+
+	/*
+	 * The result for the side to move: MATE minus the plies to mate if it
+	 * wins, minus that if it loses, 0 for a draw, or UNKNOWN if there's no
+	 * table for it.
+	 */
+	public int probe(Game game) {
+		if (game.canCastle() || game.canTakeEnPassant()) {
+			return UNKNOWN;
+		}
+		int[] counts = new int[14];
+		int total = 0;
+		for (int square = 0; square < 64; square++) {
+			int piece = game.getPiece(square / 8, square % 8);
+			if (piece != -1) {
+				counts[piece]++;
+				if (++total > MAX_PIECES) {
+					return UNKNOWN;
+				}
+			}
+		}
+		StringBuilder name = new StringBuilder(total);
+		for (int color = 0; color <= 8; color += 8) {
+			for (int i = 0; i < ORDER.length(); i++) {
+				for (int j = 0; j < counts[color + PIECES.indexOf(Character.toLowerCase(ORDER.charAt(i)))]; j++) {
+					name.append(ORDER.charAt(i));
+				}
+			}
+		}
+		boolean flipped = false;
+		Table table = tables.get(name.toString());
+		if (table == null) {
+			table = tables.get(flip(name.toString()));
+			flipped = true;
+		}
+		if (table == null) {
+			return UNKNOWN;
+		}
+		//Each piece goes in the next slot for its kind, flipped to the table's colors if need be
+		int[] squares = new int[total];
+		int[] filled = new int[14];
+		for (int square = 0; square < 64; square++) {
+			int piece = game.getPiece(square / 8, square % 8);
+			if (piece != -1) {
+				int kind = flipped ? piece ^ 8 : piece;
+				int seen = 0;
+				for (int slot = 0; slot < total; slot++) {
+					if (table.pieces[slot] == kind && seen++ == filled[kind]) {
+						squares[slot] = flipped ? square ^ 56 : square;
+						filled[kind]++;
+						break;
+					}
+				}
+			}
+		}
+		int value = table.values.get(index(table.pieces, squares, game.getTurn() != flipped)) & 0xff;
+		return value == 0 ? 0 : (value - 1) % 2 == 1 ? MATE - (value - 1) : -(MATE - (value - 1));
+	}
+
+	/*
+	 * The move that wins fastest, or loses slowest, or holds the draw, or
+	 * NONE if the position isn't in a table.  Moves that leave the tables, like a
+	 * pawn advancing two spaces next to one that can take it, are skipped.
+	 */
+	public short best(Game game) {
+		if (probe(game) == UNKNOWN) {
+			return NONE;
+		}
+		short best = NONE;
+		int bestResult = UNKNOWN;
+		for (short move : game.legalMoves()) {
+			Game after = new Game(game.gameState());
+			after.move(move);
+			int result = probe(after);
+			if (result != UNKNOWN && (best == NONE || -result > bestResult)) {
+				best = move;
+				bestResult = -result;
+			}
+		}
+		return best;
+	}
+
+	//Positions in a table of this many pieces.  The white king only goes on the left half, see index().
+	static int size(int pieces) {
+		return 2 * 32 << (6 * (pieces - 1));
+	}
+
+	/*
+	 * Where a position is in its table.  Squares are rank * 8 + file for each
+	 * slot.  Flipping the board left to right doesn't change anything once
+	 * castling is gone, so the position is flipped if need be to put the
+	 * white king on files a-d, and pieces of the same kind are put in order
+	 * of square, so every position has just one index.
+	 */
+	static int index(int[] pieces, int[] squares, boolean turn) {
+		int flip = squares[0] % 8 > 3 ? 7 : 0;
+		int[] sorted = new int[squares.length];
+		for (int slot = 0; slot < squares.length; slot++) {
+			sorted[slot] = squares[slot] ^ flip;
+		}
+		for (int slot = 1; slot < sorted.length; slot++) { //Pieces of a kind are in slots next to each other
+			for (int i = slot; i > 0 && pieces[i - 1] == pieces[i] && sorted[i - 1] > sorted[i]; i--) {
+				int swap = sorted[i];
+				sorted[i] = sorted[i - 1];
+				sorted[i - 1] = swap;
+			}
+		}
+		int index = (turn ? 1 : 0) * 32 + sorted[0] / 8 * 4 + sorted[0] % 8;
+		for (int slot = 1; slot < sorted.length; slot++) {
+			index = index * 64 + sorted[slot];
+		}
+		return index;
+	}
+
+	//The pieces in each slot for a table name, or null if it isn't one.
+	static int[] pieces(String name) {
+		int blackKing = name.indexOf('K', 1);
+		if (!name.startsWith("K") || blackKing == -1 || name.length() > MAX_PIECES) {
+			return null;
+		}
+		int[] pieces = new int[name.length()];
+		for (int i = 0; i < name.length(); i++) {
+			int kind = PIECES.indexOf(Character.toLowerCase(name.charAt(i)));
+			if (kind == -1 || (kind == 5) != (i == 0 || i == blackKing)) {
+				return null;
+			}
+			pieces[i] = i < blackKing ? kind : kind + 8;
+		}
+		return pieces;
+	}
+
+	//The same material with the colors swapped.
+	static String flip(String name) {
+		int blackKing = name.indexOf('K', 1);
+		return blackKing == -1 ? name : name.substring(blackKing) + name.substring(0, blackKing);
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * Builds endgame tablebases (see Tablebase) by retrograde analysis.
+ *
+ * First every position of the table is set up as a Game and its legal
+ * moves are looked at once.  Mates are lost in 0.  Moves that capture or
+ * promote leave the table and are looked up in the smaller tables, which
+ * are built first, and the rest are only counted.  Then, a ply at a time
+ * from mate outwards, each position decided at that distance is walked
+ * back: every position one move before it is a win if it was lost here,
+ * and if it was won here, the position before has one less move left that
+ * doesn't lose.  Once all of a position's moves lose it is lost, as slowly
+ * as its best move.  Whatever is never decided is a draw.
+ *
+ * A table of n pieces has 64^n positions (half that, see Tablebase.index),
+ * and this needs 3 bytes each while building: 3 and 4 pieces take seconds
+ * to minutes, 5 pieces a few GB of heap and hours.
+ *
+ * Usage: TablebaseBuilder DIR NAME...   for example  TablebaseBuilder tb KPK KRK KQKR
+ */
+package chesscore;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class TablebaseBuilder {
+
+	private static final String PIECES = "pnbrqk";
+	private static final int ILLEGAL = 0xff; //In left[], for positions that can't happen or aren't in index order
+	private static final int CANT_LOSE = 0xff; //In exits[], when a move out of the table draws or wins
+	private static final int[] KING = {-9, -8, -7, -1, 1, 7, 8, 9};
+	private static final int[] KNIGHT = {-17, -15, -10, -6, 6, 10, 15, 17};
+
+	private final File dir;
+
+	public TablebaseBuilder(File dir) {
+		this.dir = dir;
+	}
+
+	//Puts a name in Tablebase's order, or returns null if it can't be a table.
+	public static String normalize(String name) {
+		name = name.toUpperCase();
+		int blackKing = name.indexOf('K', 1);
+		if (blackKing == -1 || !name.startsWith("K")) {
+			return null;
+		}
+		String normal = sort(name.substring(0, blackKing)) + sort(name.substring(blackKing));
+		return Tablebase.pieces(normal) == null ? null : normal;
+	}
+
+	private static String sort(String side) {
+		StringBuilder sorted = new StringBuilder();
+		for (int i = 0; i < Tablebase.ORDER.length(); i++) {
+			for (int j = 0; j < side.length(); j++) {
+				if (side.charAt(j) == Tablebase.ORDER.charAt(i)) {
+					sorted.append(side.charAt(j));
+				}
+			}
+		}
+		return sorted.length() == side.length() ? sorted.toString() : "?";
+	}
+
+	//Builds the table and every smaller one it needs, unless they're in the directory already.
+	public void build(String name) throws IOException {
+		Tablebase existing = new Tablebase(dir);
+		if (existing.has(name)) {
+			return;
+		}
+		int[] pieces = Tablebase.pieces(name);
+		int blackKing = name.indexOf('K', 1);
+		for (int slot = 1; slot < name.length(); slot++) {
+			if (slot == blackKing) {
+				continue;
+			}
+			String captured = name.substring(0, slot) + name.substring(slot + 1);
+			build(normalize(captured));
+			if (pieces[slot] % 8 == 0) {
+				for (char promoted : "QRBN".toCharArray()) {
+					build(normalize(name.substring(0, slot) + promoted + name.substring(slot + 1)));
+				}
+			}
+		}
+		generate(name, pieces);
+	}
+
+	private void generate(String name, int[] pieces) throws IOException {
+		long start = System.currentTimeMillis();
+		Tablebase smaller = new Tablebase(dir);
+		int size = Tablebase.size(pieces.length);
+		byte[] values = new byte[size]; //As in the file, but wins found through an exit may still get shorter
+		byte[] left = new byte[size]; //Moves that stay in the table and haven't been found to lose
+		byte[] exits = new byte[size]; //The slowest loss out of the table, or CANT_LOSE
+		int[] squares = new int[pieces.length];
+		char[] state = new char[70];
+		int deepest = 0;
+		for (int index = 0; index < size; index++) {
+			boolean turn = decode(index, squares);
+			if (!valid(pieces, squares) || Tablebase.index(pieces, squares, turn) != index) {
+				left[index] = (byte) ILLEGAL;
+				continue;
+			}
+			Arrays.fill(state, 0, 64, '.');
+			for (int slot = 0; slot < pieces.length; slot++) {
+				char piece = PIECES.charAt(pieces[slot] % 8);
+				state[squares[slot]] = pieces[slot] >= 8 ? Character.toUpperCase(piece) : piece;
+			}
+			state[64] = turn ? '1' : '0';
+			Arrays.fill(state, 65, 69, '0');
+			state[69] = '/'; //No en passant
+			Game game = new Game(new String(state));
+			if (game.inCheck(!turn)) { //The side that just moved can't still be in check
+				left[index] = (byte) ILLEGAL;
+				continue;
+			}
+			short[] moves = game.legalMoves();
+			int win = Integer.MAX_VALUE;
+			int loss = 0;
+			boolean canLose = true;
+			int count = 0;
+			for (short move : moves) {
+				int to = (move >> 6) & 63;
+				if (game.getPiece(to / 8, to % 8) == -1 && (move >> 12) == 0) {
+					count++;
+					continue;
+				}
+				Game after = new Game(game.gameState());
+				after.move(move);
+				int result = smaller.probe(after);
+				if (result == Tablebase.UNKNOWN) {
+					throw new IOException("Missing a smaller table for " + after.gameState());
+				}
+				if (result < 0) { //They get mated
+					win = Math.min(win, Tablebase.MATE + result + 1);
+				} else if (result == 0) {
+					canLose = false;
+				} else {
+					loss = Math.max(loss, Tablebase.MATE - result + 1);
+				}
+			}
+			left[index] = (byte) count;
+			exits[index] = (byte) (canLose ? loss : CANT_LOSE);
+			if (moves.length == 0) {
+				values[index] = (byte) (game.inCheck(turn) ? 1 : 0); //Mated, or stalemate
+			} else if (win != Integer.MAX_VALUE) {
+				values[index] = encode(win);
+				deepest = Math.max(deepest, win);
+			} else if (count == 0 && canLose) {
+				values[index] = encode(loss);
+				deepest = Math.max(deepest, loss);
+			}
+		}
+		long walked = System.currentTimeMillis();
+		int[] before = new int[pieces.length];
+		for (int plies = 0; plies <= deepest; plies++) {
+			for (int index = 0; index < size; index++) {
+				if ((values[index] & 0xff) != plies + 1 || (left[index] & 0xff) == ILLEGAL) {
+					continue;
+				}
+				boolean turn = decode(index, squares);
+				boolean mover = !turn; //Who made the move into this position
+				for (int slot = 0; slot < pieces.length; slot++) {
+					if ((pieces[slot] >= 8) != mover) {
+						continue;
+					}
+					int[] from = unmoves(pieces[slot], squares[slot], squares);
+					for (int square : from) {
+						System.arraycopy(squares, 0, before, 0, squares.length);
+						before[slot] = square;
+						int previous = Tablebase.index(pieces, before, mover);
+						if ((left[previous] & 0xff) == ILLEGAL) {
+							continue;
+						}
+						int value = values[previous] & 0xff;
+						if (plies % 2 == 0) { //Lost here, so won there
+							if (value == 0 || (value - 1) % 2 == 1 && value - 1 > plies + 1) {
+								values[previous] = encode(plies + 1);
+								deepest = Math.max(deepest, plies + 1);
+							}
+						} else if (value == 0) {
+							left[previous]--;
+							if (left[previous] == 0 && (exits[previous] & 0xff) != CANT_LOSE) {
+								int lost = Math.max(plies + 1, exits[previous] & 0xff);
+								values[previous] = encode(lost);
+								deepest = Math.max(deepest, lost);
+							}
+						}
+					}
+				}
+			}
+		}
+		write(name, pieces.length, values);
+		System.out.println(name + ": " + count(values, left) + " in " + (walked - start) + " + "
+				+ (System.currentTimeMillis() - walked) + " ms, longest mate " + deepest + " plies");
+	}
+
+	private static byte encode(int plies) {
+		if (plies > 253) {
+			throw new IllegalStateException("Mate in " + plies + " plies doesn't fit in a byte");
+		}
+		return (byte) (plies + 1);
+	}
+
+	//The squares of each slot and whose turn it is, for an index.  The inverse of Tablebase.index for indexes in order.
+	private static boolean decode(int index, int[] squares) {
+		for (int slot = squares.length - 1; slot > 0; slot--) {
+			squares[slot] = index & 63;
+			index >>>= 6;
+		}
+		squares[0] = (index & 31) / 4 * 8 + index % 4;
+		return index >= 32;
+	}
+
+	//No two pieces on a square, and no pawns on the first or last rank.
+	private static boolean valid(int[] pieces, int[] squares) {
+		for (int slot = 0; slot < squares.length; slot++) {
+			if (pieces[slot] % 8 == 0 && (squares[slot] < 8 || squares[slot] >= 56)) {
+				return false;
+			}
+			for (int other = 0; other < slot; other++) {
+				if (squares[other] == squares[slot]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	//Where a piece now on the square could have come from without capturing, given where everything is now.
+	private static int[] unmoves(int piece, int square, int[] squares) {
+		boolean[] taken = new boolean[64];
+		for (int other : squares) {
+			taken[other] = true;
+		}
+		int[] from = new int[28];
+		int count = 0;
+		int rank = square / 8;
+		int file = square % 8;
+		int type = piece % 8;
+		if (type == 0) { //White pawns go up the board (towards rank 0), black ones down
+			int back = piece < 8 ? 8 : -8;
+			int home = piece < 8 ? 6 : 1;
+			int behind = square + back;
+			if (behind / 8 != (piece < 8 ? 7 : 0) && !taken[behind]) {
+				from[count++] = behind;
+				if (behind / 8 + back / 8 == home && !taken[behind + back]) {
+					from[count++] = behind + back;
+				}
+			}
+		} else if (type == 1 || type == 5) {
+			int[] jumps = type == 1 ? KNIGHT : KING;
+			for (int jump : jumps) {
+				int to = square + jump;
+				if (to >= 0 && to < 64 && Math.abs(to % 8 - file) <= 2 && !taken[to]) {
+					from[count++] = to;
+				}
+			}
+		} else {
+			for (int i = -1; i <= 1; i++) {
+				for (int j = -1; j <= 1; j++) {
+					if ((i == 0 && j == 0) || (type == 3 && i != 0 && j != 0) || (type == 2 && (i == 0 || j == 0))) {
+						continue;
+					}
+					for (int r = rank + i, f = file + j; r >= 0 && r < 8 && f >= 0 && f < 8 && !taken[r * 8 + f];
+							r += i, f += j) {
+						from[count++] = r * 8 + f;
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(from, count);
+	}
+
+	private static String count(byte[] values, byte[] left) {
+		long wins = 0;
+		long losses = 0;
+		long draws = 0;
+		for (int i = 0; i < values.length; i++) {
+			if ((left[i] & 0xff) == ILLEGAL) {
+				continue;
+			}
+			int value = values[i] & 0xff;
+			if (value == 0) {
+				draws++;
+			} else if ((value - 1) % 2 == 1) {
+				wins++;
+			} else {
+				losses++;
+			}
+		}
+		return wins + " won, " + losses + " lost, " + draws + " drawn";
+	}
+
+	private void write(String name, int pieces, byte[] values) throws IOException {
+		File file = new File(dir, name + ".tb");
+		File temp = new File(dir, name + ".tb.tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+			out.writeInt(Tablebase.MAGIC);
+			out.writeInt(pieces);
+			out.write(String.format("%-8s", name).getBytes(StandardCharsets.US_ASCII));
+			out.write(values);
+		}
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("Can't replace " + file);
+		}
+	}
+
+	//Usage: TablebaseBuilder DIR NAME...
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: TablebaseBuilder DIR NAME...   for example  TablebaseBuilder tb KPK KRK KQKR");
+			return;
+		}
+		File dir = new File(args[0]);
+		dir.mkdirs();
+		TablebaseBuilder builder = new TablebaseBuilder(dir);
+		for (int i = 1; i < args.length; i++) {
+			String name = normalize(args[i]);
+			if (name == null) {
+				System.out.println("Not a table: " + args[i] + ", up to " + Tablebase.MAX_PIECES + " pieces with one king each");
+				return;
+			}
+			builder.build(name);
+		}
+	}
+}
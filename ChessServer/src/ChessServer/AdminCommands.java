@@ -0,0 +1,321 @@
+/*
+ * The server console's commands, without any window, so the same commands
+ * work from the Swing Console, standard input or the AdminServer socket.
+ * execute() takes one command line and returns what to show for it.
+ *
+ * These run on their own threads, but profiles and games belong to the main
+ * loop.  Anything that needs them is handed to the main loop, which calls
+ * runTasks() every pass.  Small queries run there directly.  The player
+ * list is read from a Snapshot instead: a frozen copy of every name and
+ * the profiles in memory, built on the caller's thread from ProfileCache's
+ * concurrent maps so the main loop never waits on it, reused for
+ * SNAPSHOT_AGE milliseconds, and paged through or streamed from there.
+ * It may be a moment out of date, but never holds up a game.
+ */
+package ChessServer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AdminCommands {
+
+	private static final String CRLF = "\r\n";
+	private final ProfileCache players;
+	private final GameArchive archive;
+	private final Matchmaker matchmaker;
+	private final Ratings ratings;
+	private volatile boolean shutdown;
+	private static final long SNAPSHOT_AGE = 1000;
+	private static final long WAIT = 5000; //Milliseconds to wait for the main loop
+	public static final int PAGE_SIZE = 100;
+	private final Queue<FutureTask<?>> tasks;
+	private volatile Snapshot snapshot;
+
+	//A profile as it was when the snapshot was taken.
+	public static class Row {
+
+		public final String name;
+		public final boolean online;
+		public final int rating;
+		public final String opponent; //null if none
+		public final boolean inGame;
+
+		Row(Profile profile) {
+			name = profile.name;
+			online = profile.client != null;
+			rating = profile.rating;
+			opponent = profile.opp == null ? null : profile.opp.name;
+			inGame = profile.game != null;
+		}
+	}
+
+	public static class Snapshot {
+
+		public final long taken;
+		public final Directory directory;
+		public final HashMap<String, Row> resident;
+
+		Snapshot(Collection<String> names, Collection<Profile> profiles) {
+			taken = System.currentTimeMillis();
+			directory = new Directory(names);
+			resident = new HashMap<>(profiles.size() * 2);
+			for (Profile profile : profiles) {
+				Row row = new Row(profile);
+				resident.put(profile.name, row);
+				directory.setOnline(profile.name, row.online); //Only players in memory can be online
+			}
+		}
+	}
+
+	public AdminCommands(ProfileCache map, GameArchive games, Matchmaker matcher, Ratings rated) {
+		players = map;
+		archive = games;
+		matchmaker = matcher;
+		ratings = rated;
+		shutdown = false;
+		tasks = new LinkedList<>();
+	}
+
+	//Runs whatever the console threads are waiting on.  Main loop only.
+	public void runTasks() {
+		while (true) {
+			FutureTask<?> task;
+			synchronized (tasks) {
+				task = tasks.poll();
+			}
+			if (task == null) {
+				return;
+			}
+			task.run();
+		}
+	}
+
+	//Runs the query on the main loop and waits for it.
+	private <T> T onMainLoop(Callable<T> query) throws TimeoutException {
+		FutureTask<T> task = new FutureTask<>(query);
+		synchronized (tasks) {
+			tasks.offer(task);
+		}
+		try {
+			return task.get(WAIT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) { //The query's own exception, for execute() to report
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Snapshot snapshot() {
+		Snapshot current = snapshot;
+		if (current != null && System.currentTimeMillis() - current.taken < SNAPSHOT_AGE) {
+			return current;
+		}
+		current = new Snapshot(players.names(), players.resident());
+		snapshot = current;
+		return current;
+	}
+
+	public boolean checkShutdown() {
+		return shutdown;
+	}
+
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	public String execute(String line) {
+		final String part[] = line.trim().split(" ");
+		try {
+			switch (part[0]) {
+				case "game":
+					return onMainLoop(new Callable<String>() {
+						@Override
+						public String call() {
+							return displayGame(part[1]);
+						}
+					});
+				case "history":
+					return onMainLoop(new Callable<String>() {
+						@Override
+						public String call() {
+							return displayHistory(part[1]);
+						}
+					});
+				case "find":
+					return findPosition(line.trim().substring(part[0].length()).trim());
+				case "archived":
+					return displayArchived(part[1]);
+				case "matchmaking":
+					return matchmaker.report();
+				case "top":
+					return ratings.report() + "\n" + ratings.page(part.length > 1
+							? Integer.parseInt(part[1]) : 0).replace('\t', '\n');
+				case "players": //players [OFFSET [PREFIX]]
+					StringBuilder page = new StringBuilder();
+					displayPlayers(part.length > 2 ? part[2] : "", part.length > 1 ? Integer.parseInt(part[1]) : 0,
+							PAGE_SIZE, page);
+					return page.toString();
+				case "stats":
+					return Metrics.report();
+				case "exit":
+					shutdown();
+					return "Shutting down.";
+				case "msg":
+					final String[] msg = line.trim().split(" ", 3);
+					return onMainLoop(new Callable<String>() {
+						@Override
+						public String call() {
+							return sendMessage(msg[1], msg[2]);
+						}
+					});
+				default:
+					return "Command not recognized.\n\n"
+							+ "Commands:\n"
+							+ "players [offset] [prefix]\n"
+							+ "game [playername]\n"
+							+ "history [playername]\n"
+							+ "find [FEN]\n"
+							+ "archived [game id]\n"
+							+ "matchmaking\n"
+							+ "top [offset]\n"
+							+ "stats\n"
+							+ "msg [playername] [message]\n"
+							+ "exit";
+			}
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			return "Too few params.";
+		} catch (NumberFormatException ex) {
+			return "Not a number: " + ex.getMessage();
+		} catch (TimeoutException ex) {
+			return "The server is too busy to answer, try again.";
+		} catch (IOException ex) {
+			return ex.toString();
+		} catch (RuntimeException ex) { //Thrown here or on the main loop, so the console's thread lives on
+			Log.error("admin command failed", "command", line, "error", ex);
+			return "That failed: " + ex;
+		}
+	}
+
+	private String displayGame(String username) {
+		Profile profile = players.get(username);
+		if (profile == null) {
+			return "Player not found.";
+		}
+		if (profile.game == null) {
+			return "This player is not in a game.";
+		}
+		String state = profile.game.gameState();
+		StringBuilder data = new StringBuilder(256);
+		data.append(profile.name).append(" (").append(profile.colorWord()).append(") vs. ")
+				.append(profile.opp.name).append(" (").append(profile.opp.colorWord()).append(")\n");
+		data.append(profile.game.board());
+		data.append("\nTurn:       ").append(state.charAt(64) == '0' ? "white" : "black").append('\n');
+		data.append("Castling    Queenside  Kingside\n");
+		data.append("White:      ").append(state.charAt(65) == '1' ? "Yes" : "No ")
+				.append("        ").append(state.charAt(66) == '1' ? "Yes" : "No ").append('\n');
+		data.append("Black:      ").append(state.charAt(67) == '1' ? "Yes" : "No ")
+				.append("        ").append(state.charAt(68) == '1' ? "Yes" : "No ").append('\n');
+		data.append("En passant? ").append(state.charAt(69) == '/' ? "No" : "At file " + state.charAt(69)).append('\n');
+		return data.toString();
+	}
+
+	private String displayHistory(String username) {
+		Profile profile = players.get(username);
+		if (profile == null) {
+			return "Player not found.";
+		} else if (profile.game == null) {
+			return "This player is not in a game.";
+		}
+		return profile.game.historyLength() + " moves: " + profile.game.exportMoves();
+	}
+
+	private String findPosition(String fen) {
+		try {
+			long time = System.nanoTime();
+			List<Long> ids = archive.find(Notation.fromFen(fen));
+			return ids.size() + " archived games reached this position ("
+					+ (System.nanoTime() - time) / 1000 + " us):\n" + ids;
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	private String displayArchived(String id) {
+		try {
+			GameArchive.Entry entry = archive.get(Long.parseLong(id));
+			if (entry == null) {
+				return "Game not found.";
+			}
+			StringWriter pgn = new StringWriter();
+			new PgnWriter(pgn).write(entry.toPgn());
+			return pgn.toString();
+		} catch (NumberFormatException | IOException e) {
+			return "Bad game id: " + e.getMessage();
+		}
+	}
+
+	/*
+	 * Up to limit players whose names start with prefix, from offset on, out
+	 * of one snapshot, then a line saying which players these were and the
+	 * command for the next page.
+	 */
+	public void displayPlayers(String prefix, int offset, int limit, Appendable out) throws IOException {
+		Snapshot current = snapshot();
+		int[] range = current.directory.range(prefix);
+		int total = range[1] - range[0];
+		offset = Math.min(Math.max(0, offset), total);
+		int to = (int) Math.min(range[1], (long) range[0] + offset + limit);
+		appendPlayers(current, range[0] + offset, to, out);
+		out.append("Players ").append(String.valueOf(offset)).append('-').append(String.valueOf(to - range[0]))
+				.append(" of ").append(String.valueOf(total));
+		if (to < range[1]) {
+			out.append(", next: players ").append(String.valueOf(to - range[0])).append(prefix.isEmpty() ? "" : " " + prefix);
+		}
+		out.append('\n');
+	}
+
+	//Every matching player from the same snapshot, flushed a page at a time so nobody holds them all.
+	public void streamPlayers(String prefix, Writer out) throws IOException {
+		Snapshot current = snapshot();
+		int[] range = current.directory.range(prefix);
+		for (int from = range[0]; from < range[1]; from += PAGE_SIZE) {
+			appendPlayers(current, from, Math.min(range[1], from + PAGE_SIZE), out);
+			out.flush();
+		}
+		out.append("Players 0-").append(String.valueOf(range[1] - range[0])).append(" of ")
+				.append(String.valueOf(range[1] - range[0])).append('\n');
+	}
+
+	private static void appendPlayers(Snapshot current, int from, int to, Appendable out) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		for (int i = from; i < to; i++) {
+			String name = current.directory.name(i);
+			Row row = current.resident.get(name);
+			line.setLength(0);
+			line.append(name).append(" (").append(current.directory.isOnline(i) ? "online" : "offline");
+			if (row == null) {
+				line.append(", not loaded");
+			} else {
+				line.append(", ").append(row.rating).append(", ").append(row.opponent == null
+						? "no opponent" : "opponent: " + row.opponent + ", "
+						+ (row.inGame ? "in a game" : "not in a game"));
+			}
+			out.append(line.append(")\n"));
+		}
+	}
+
+	private String sendMessage(String recipient, String message) {
+		Profile profile = players.get(recipient);
+		if (profile == null) {
+			return "Player not found.";
+		}
+		if (profile.client == null) {
+			return "This player is offline.";
+		}
+		profile.client.send("svrmsg [ADMIN] " + message + CRLF);
+		return "Sent.";
+	}
+}
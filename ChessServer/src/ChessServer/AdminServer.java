@@ -0,0 +1,94 @@
+/*
+ * The console over a socket, for running a server nobody is sitting at.
+ * Only listens on the loopback address, on -DadminPort (1730 by default,
+ * 0 to turn it off).  One command per line, same as the Console, and each
+ * answer ends with a line holding just a dot.  On top of the console's
+ * paged "players", "dump [PREFIX]" streams every player from one snapshot.
+ */
+package ChessServer;
+
+import java.io.*;
+import java.net.*;
+
+public class AdminServer implements Runnable {
+
+	public static final int PORT = Integer.getInteger("adminPort", 1730);
+	private final AdminCommands commands;
+	private ServerSocket server;
+
+	public AdminServer(AdminCommands commands) {
+		this.commands = commands;
+	}
+
+	@Override
+	public void run() {
+		try {
+			server = new ServerSocket(PORT, 50, InetAddress.getLoopbackAddress());
+		} catch (IOException e) {
+			Log.error("creating admin socket failed", "port", PORT, "error", e);
+			return;
+		}
+		Log.info("admin socket listening", "port", PORT);
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				Thread session = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "admin");
+				session.setDaemon(true);
+				session.start();
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					Log.warn("accepting admin connection failed", "error", e);
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+				Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				if (line.equals("dump") || line.startsWith("dump ")) {
+					try {
+						commands.streamPlayers(line.substring(4).trim(), out);
+					} catch (RuntimeException e) {
+						Log.error("admin dump failed", "error", e);
+						out.write("That failed: " + e + "\n");
+					}
+				} else {
+					String answer = commands.execute(line);
+					out.write(answer);
+					if (!answer.endsWith("\n")) {
+						out.write('\n');
+					}
+				}
+				out.write(".\n");
+				out.flush();
+				if (line.equals("exit")) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			Log.debug("admin connection closed", "error", e);
+		}
+	}
+
+	public void close() {
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Replays stored games in parallel and counts what happened in them:
+ * checks, captures, castles, promotions, mates and stalemates, plus the
+ * average evaluation if an Evaluator is given.
+ *
+ * Archived games are split into ranges of each segment and analyzed on a
+ * fork/join pool, each leaf reading its range in one pass.  PGN files go
+ * through PgnImport's chunked readers instead.  Every thread keeps its own
+ * counters, which are added together at the end, so the hot loop shares
+ * nothing.
+ */
+package ChessServer;
+
+import chesscore.Game;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AnalysisJob {
+
+	private static final int LEAF_GAMES = 256; //Games one task reads and analyzes without splitting
+
+	public static class Stats {
+
+		public long games;
+		public long skipped; //Games that couldn't be read, like PGN with an illegal move
+		public long plies;
+		public long checks;
+		public long captures;
+		public long castles;
+		public long promotions;
+		public long mates;
+		public long stalemates;
+		public long[] results = new long[GameArchive.RESULTS.length];
+		public long evalPositions;
+		public long evalSum;
+		//Time spent in each stage, added up over all threads
+		public long readNanos;
+		public long replayNanos;
+		public long mateNanos;
+		public long evalNanos;
+
+		public void add(Stats other) {
+			games += other.games;
+			skipped += other.skipped;
+			plies += other.plies;
+			checks += other.checks;
+			captures += other.captures;
+			castles += other.castles;
+			promotions += other.promotions;
+			mates += other.mates;
+			stalemates += other.stalemates;
+			for (int i = 0; i < results.length; i++) {
+				results[i] += other.results[i];
+			}
+			evalPositions += other.evalPositions;
+			evalSum += other.evalSum;
+			readNanos += other.readNanos;
+			replayNanos += other.replayNanos;
+			mateNanos += other.mateNanos;
+			evalNanos += other.evalNanos;
+		}
+
+		public String report(long wallNanos, int threads) {
+			long wallMs = Math.max(1, wallNanos / 1000000);
+			StringBuilder sb = new StringBuilder();
+			sb.append("Games:        ").append(games).append('\n');
+			sb.append("Skipped:      ").append(skipped).append(" unreadable\n");
+			sb.append("Plies:        ").append(plies).append('\n');
+			sb.append("Checks:       ").append(checks).append('\n');
+			sb.append("Captures:     ").append(captures).append('\n');
+			sb.append("Castles:      ").append(castles).append('\n');
+			sb.append("Promotions:   ").append(promotions).append('\n');
+			sb.append("Checkmates:   ").append(mates).append('\n');
+			sb.append("Stalemates:   ").append(stalemates).append('\n');
+			for (int i = 0; i < results.length; i++) {
+				sb.append("Result ").append(GameArchive.RESULTS[i]).append(": ").append(results[i]).append('\n');
+			}
+			if (evalPositions > 0) {
+				sb.append("Average eval: ").append(evalSum / evalPositions).append(" cp\n");
+			}
+			sb.append('\n');
+			sb.append("Threads:      ").append(threads).append('\n');
+			sb.append("Wall time:    ").append(wallMs).append(" ms\n");
+			sb.append("Throughput:   ").append(games * 60000 / wallMs).append(" games/min, ")
+					.append(plies * 1000 / wallMs).append(" plies/s\n");
+			sb.append("Read:         ").append(readNanos / 1000000).append(" ms (all threads)\n");
+			sb.append("Replay:       ").append(replayNanos / 1000000).append(" ms\n");
+			sb.append("Mate checks:  ").append(mateNanos / 1000000).append(" ms\n");
+			sb.append("Evaluation:   ").append(evalNanos / 1000000).append(" ms\n");
+			return sb.toString();
+		}
+	}
+
+	private final Evaluator evaluator; //null to skip evaluation
+
+	public AnalysisJob(Evaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	//Replays one game into the counters.
+	public void analyze(String startState, short[] moves, int result, Stats stats) {
+		long start = System.nanoTime();
+		long mateNanos = 0;
+		long evalNanos = 0;
+		Game game = new Game(startState);
+		for (short move : moves) {
+			int from = move & 63;
+			int to = (move >> 6) & 63;
+			int piece = game.getPiece(from / 8, from % 8) % 8;
+			if (game.getPiece(to / 8, to % 8) != -1 || (piece == 0 && from % 8 != to % 8)) {
+				stats.captures++;
+			}
+			if (piece == 5 && Math.abs(to % 8 - from % 8) == 2) {
+				stats.castles++;
+			}
+			if ((move >> 12) != 0) {
+				stats.promotions++;
+			}
+			game.move(move);
+			if (game.inCheck(game.getTurn())) {
+				stats.checks++;
+			}
+			if (evaluator != null) {
+				long t = System.nanoTime();
+				stats.evalSum += evaluator.evaluate(game);
+				stats.evalPositions++;
+				evalNanos += System.nanoTime() - t;
+			}
+		}
+		long t = System.nanoTime();
+		int end = game.checkmate(game.getTurn()); //Only the last position can be mate
+		if (end == 1) {
+			stats.mates++;
+		} else if (end == -1) {
+			stats.stalemates++;
+		}
+		long now = System.nanoTime();
+		mateNanos += now - t;
+		stats.games++;
+		stats.plies += moves.length;
+		stats.results[result]++;
+		stats.mateNanos += mateNanos;
+		stats.evalNanos += evalNanos;
+		stats.replayNanos += now - start - mateNanos - evalNanos;
+	}
+
+	//Splits a range of one segment in half until it is small enough to do directly.
+	private class SegmentTask extends RecursiveTask<Stats> {
+
+		private static final long serialVersionUID = 1L; //ForkJoinTask is Serializable, though these never are
+		private final GameArchive.Segment segment;
+		private final int from;
+		private final int to;
+
+		SegmentTask(GameArchive.Segment segment, int from, int to) {
+			this.segment = segment;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Stats compute() {
+			if (to - from > LEAF_GAMES) {
+				int mid = (from + to) >>> 1;
+				SegmentTask left = new SegmentTask(segment, from, mid);
+				left.fork();
+				Stats stats = new SegmentTask(segment, mid, to).compute();
+				stats.add(left.join());
+				return stats;
+			}
+			Stats stats = new Stats();
+			long t = System.nanoTime();
+			List<GameArchive.Entry> entries;
+			try {
+				entries = segment.read(from, to);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem with reading archive: " + e, e);
+			}
+			stats.readNanos += System.nanoTime() - t;
+			for (GameArchive.Entry entry : entries) {
+				analyze(entry.startState, entry.moves, entry.result, stats);
+			}
+			return stats;
+		}
+	}
+
+	public Stats analyzeArchive(GameArchive archive, ForkJoinPool pool) {
+		final List<GameArchive.Segment> segments = archive.snapshot();
+		final List<GameArchive.Entry> pending = archive.pending();
+		return pool.invoke(new RecursiveTask<Stats>() {
+			@Override
+			protected Stats compute() {
+				ArrayList<SegmentTask> tasks = new ArrayList<>();
+				for (GameArchive.Segment segment : segments) {
+					tasks.add(new SegmentTask(segment, 0, segment.gameCount));
+				}
+				invokeAll(tasks);
+				Stats stats = new Stats();
+				for (GameArchive.Entry entry : pending) {
+					analyze(entry.startState, entry.moves, entry.result, stats);
+				}
+				for (SegmentTask task : tasks) {
+					stats.add(task.join());
+				}
+				return stats;
+			}
+		});
+	}
+
+	public Stats analyzePgn(File file, int threads) throws IOException, InterruptedException {
+		final List<Stats> all = Collections.synchronizedList(new ArrayList<Stats>());
+		final ThreadLocal<Stats> local = new ThreadLocal<Stats>() {
+			@Override
+			protected Stats initialValue() {
+				Stats stats = new Stats();
+				all.add(stats);
+				return stats;
+			}
+		};
+		//The reader runs between calls, so the gap since the last call on this thread is read time.
+		final ThreadLocal<long[]> lastReturn = new ThreadLocal<long[]>() {
+			@Override
+			protected long[] initialValue() {
+				return new long[]{System.nanoTime()};
+			}
+		};
+		new PgnImport().importFile(file, threads, new PgnImport.Handler() {
+			@Override
+			public void game(PgnGame pgn) {
+				Stats stats = local.get();
+				long[] last = lastReturn.get();
+				stats.readNanos += System.nanoTime() - last[0];
+				if (pgn.error == null) {
+					int result = Arrays.asList(GameArchive.RESULTS).indexOf(pgn.result);
+					analyze(pgn.game.replay(0).gameState(), pgn.game.history(), result == -1 ? 3 : result, stats);
+				} else {
+					stats.skipped++;
+				}
+				last[0] = System.nanoTime();
+			}
+		});
+		Stats total = new Stats();
+		for (Stats stats : all) {
+			total.add(stats);
+		}
+		return total;
+	}
+
+	//Usage: AnalysisJob (archive DIR | pgn FILE) [-threads N] [-eval] [-out FILE]
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: AnalysisJob (archive DIR | pgn FILE) [-threads N] [-eval] [-out FILE]");
+			return;
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean eval = false;
+		String out = "analysis.txt";
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+				case "-threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "-eval":
+					eval = true;
+					break;
+				case "-out":
+					out = args[++i];
+					break;
+			}
+		}
+		AnalysisJob job = new AnalysisJob(eval ? new MaterialEvaluator() : null);
+		long start = System.nanoTime();
+		Stats stats;
+		if (args[0].equals("archive")) {
+			GameArchive archive = new GameArchive(args[1]);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			stats = job.analyzeArchive(archive, pool);
+			pool.shutdown();
+		} else {
+			stats = job.analyzePgn(new File(args[1]), threads);
+		}
+		String report = stats.report(System.nanoTime() - start, threads);
+		System.out.print(report);
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(out))) {
+			bw.write(report);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Builds an opening book (see OpeningBook) from stored games, offline.
+ *
+ * Every move in the first few plies of every game counts towards its
+ * position and move: 2 if the side that played it went on to win, 1 for a
+ * draw or an unfinished game, 0 for a loss, the same way polyglot books
+ * score them.  Moves played fewer than -min times, or that only ever lost,
+ * are left out.
+ *
+ * Like AnalysisJob, PGN files are read on PgnImport's threads and each
+ * thread tallies into its own table, which are added together at the end.
+ * The tables are open addressing over plain arrays, since a big import
+ * has millions of (position, move) pairs.
+ *
+ * Usage: BookBuilder (archive DIR | pgn FILE) [-plies N] [-min N] [-threads N] [-out FILE]
+ */
+package ChessServer;
+
+import chesscore.Game;
+import chesscore.OpeningBook;
+import java.io.*;
+import java.util.*;
+
+public class BookBuilder {
+
+	private final int plies;
+
+	public BookBuilder(int plies) {
+		this.plies = plies;
+	}
+
+	//Counts and points for each (position, move) seen.
+	static class Tally {
+
+		long[] hashes = new long[1 << 12];
+		short[] moves = new short[1 << 12];
+		int[] counts = new int[1 << 12]; //0 for an empty slot
+		int[] points = new int[1 << 12];
+		int size;
+
+		void add(long hash, short move, int count, int score) {
+			if (size * 2 >= hashes.length) {
+				grow();
+			}
+			int mask = hashes.length - 1;
+			long mixed = (hash ^ move * 0x9E3779B97F4A7C15L) * 0xC2B2AE3D27D4EB4FL;
+			int slot = (int) (mixed ^ mixed >>> 32) & mask;
+			while (counts[slot] != 0 && (hashes[slot] != hash || moves[slot] != move)) {
+				slot = (slot + 1) & mask;
+			}
+			if (counts[slot] == 0) {
+				hashes[slot] = hash;
+				moves[slot] = move;
+				size++;
+			}
+			counts[slot] += count;
+			points[slot] += score;
+		}
+
+		void add(Tally other) {
+			for (int i = 0; i < other.hashes.length; i++) {
+				if (other.counts[i] != 0) {
+					add(other.hashes[i], other.moves[i], other.counts[i], other.points[i]);
+				}
+			}
+		}
+
+		private void grow() {
+			Tally bigger = new Tally();
+			bigger.hashes = new long[hashes.length * 2];
+			bigger.moves = new short[hashes.length * 2];
+			bigger.counts = new int[hashes.length * 2];
+			bigger.points = new int[hashes.length * 2];
+			bigger.add(this);
+			hashes = bigger.hashes;
+			moves = bigger.moves;
+			counts = bigger.counts;
+			points = bigger.points;
+		}
+	}
+
+	//Tallies the opening of one game.  Result is an index into GameArchive.RESULTS.
+	public void add(String startState, short[] moves, int result, Tally tally) {
+		Game game = new Game(startState);
+		for (int i = 0; i < moves.length && i < plies; i++) {
+			boolean black = game.getTurn();
+			int score = result == 2 || result == 3 ? 1 : (result == 1) == black ? 2 : 0;
+			tally.add(game.hash(), moves[i], 1, score);
+			game.move(moves[i]);
+		}
+	}
+
+	public Tally addArchive(GameArchive archive) throws IOException {
+		Tally tally = new Tally();
+		for (GameArchive.Segment segment : archive.snapshot()) {
+			for (int from = 0; from < segment.gameCount; from += 1000) {
+				for (GameArchive.Entry entry : segment.read(from, Math.min(from + 1000, segment.gameCount))) {
+					add(entry.startState, entry.moves, entry.result, tally);
+				}
+			}
+		}
+		for (GameArchive.Entry entry : archive.pending()) {
+			add(entry.startState, entry.moves, entry.result, tally);
+		}
+		return tally;
+	}
+
+	public Tally addPgn(File file, int threads) throws IOException, InterruptedException {
+		final List<Tally> all = Collections.synchronizedList(new ArrayList<Tally>());
+		final ThreadLocal<Tally> local = new ThreadLocal<Tally>() {
+			@Override
+			protected Tally initialValue() {
+				Tally tally = new Tally();
+				all.add(tally);
+				return tally;
+			}
+		};
+		new PgnImport().importFile(file, threads, new PgnImport.Handler() {
+			@Override
+			public void game(PgnGame pgn) {
+				if (pgn.error == null) {
+					int result = Arrays.asList(GameArchive.RESULTS).indexOf(pgn.result);
+					add(pgn.game.replay(0).gameState(), pgn.game.history(), result == -1 ? 3 : result, local.get());
+				}
+			}
+		});
+		Tally total = new Tally();
+		for (Tally tally : all) {
+			total.add(tally);
+		}
+		return total;
+	}
+
+	//Writes the moves played at least min times that didn't only lose, in the order OpeningBook reads.  Returns how many.
+	public static int write(final Tally tally, int min, File file) throws IOException {
+		ArrayList<Integer> kept = new ArrayList<>();
+		for (int i = 0; i < tally.hashes.length; i++) {
+			if (tally.counts[i] >= min && tally.points[i] > 0) {
+				kept.add(i);
+			}
+		}
+		Collections.sort(kept, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int byHash = Long.compare(tally.hashes[a], tally.hashes[b]);
+				return byHash != 0 ? byHash : Integer.compare(tally.points[b], tally.points[a]);
+			}
+		});
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+			out.writeInt(OpeningBook.MAGIC);
+			out.writeInt(kept.size());
+			out.writeLong(0); //Padding so the entries line up
+			for (int i : kept) {
+				out.writeLong(tally.hashes[i]);
+				out.writeLong((long) (tally.moves[i] & 0xffff) << 32 | tally.points[i]);
+			}
+		}
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("Can't replace " + file);
+		}
+		return kept.size();
+	}
+
+	//Usage: BookBuilder (archive DIR | pgn FILE) [-plies N] [-min N] [-threads N] [-out FILE]
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: BookBuilder (archive DIR | pgn FILE) [-plies N] [-min N] [-threads N] [-out FILE]");
+			return;
+		}
+		int plies = 24;
+		int min = 2;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String out = "book.bin";
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "-plies":
+					plies = Integer.parseInt(args[i + 1]);
+					break;
+				case "-min":
+					min = Integer.parseInt(args[i + 1]);
+					break;
+				case "-threads":
+					threads = Integer.parseInt(args[i + 1]);
+					break;
+				case "-out":
+					out = args[i + 1];
+					break;
+			}
+		}
+		BookBuilder builder = new BookBuilder(plies);
+		long start = System.currentTimeMillis();
+		Tally tally;
+		if (args[0].equals("archive")) {
+			try (GameArchive archive = new GameArchive(args[1])) {
+				tally = builder.addArchive(archive);
+			}
+		} else {
+			tally = builder.addPgn(new File(args[1]), threads);
+		}
+		int entries = write(tally, min, new File(out));
+		System.out.println("Wrote " + entries + " of " + tally.size + " moves to " + out + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Sends the same message to lots of clients on its own threads.
+ *
+ * The caller hands over bytes it built once and a list of clients.  The
+ * message goes on each client's backlog of shared byte arrays right there,
+ * on the caller's thread, so every client gets messages in the order they
+ * were broadcast.  Only the writing happens on the writer threads, one at
+ * a time per client, so one slow socket only holds up its own messages.
+ * A client whose backlog fills up misses messages instead of using more
+ * memory, and send() returns false so the caller can catch them up later.
+ */
+package ChessServer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Broadcaster {
+
+	private static final int THREADS = 4;
+	private final ExecutorService writers;
+	public final AtomicLong sent = new AtomicLong();
+	public final AtomicLong dropped = new AtomicLong();
+	private final AtomicInteger pending = new AtomicInteger(); //Tasks handed to the writers and not done yet
+
+	public Broadcaster() {
+		writers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "broadcaster");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	//Queues the message for every client, in order with everything else sent through here.
+	public void broadcast(byte[] message, Collection<Client> clients) {
+		for (Client client : clients) {
+			send(message, client);
+		}
+	}
+
+	//False if the client's backlog was full and the message was dropped.
+	public boolean send(byte[] message, final Client client) {
+		int state = client.queue(message);
+		if (state == -1) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		sent.incrementAndGet();
+		if (state == 1) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					client.flush();
+				}
+			});
+		}
+		return true;
+	}
+
+	private void execute(final Runnable task) {
+		pending.incrementAndGet();
+		writers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Waits until everything broadcast so far has been written, or until the
+	 * deadline (from System.currentTimeMillis()), then stops the writers.
+	 * Returns false if it ran out of time.
+	 */
+	public boolean drain(long deadline) {
+		while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		writers.shutdownNow();
+		return pending.get() == 0;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Messages between the nodes of a cluster.
+ *
+ * Every node listens on its own address from the cluster list, and only
+ * takes connections from the addresses on the list, with FROM matching
+ * the address it came from.  An address is easy to share, though, and on
+ * one host it is every local process, while a bus message can move for any
+ * player or clear their away state.  So with -DclusterSecret=SECRET, the
+ * same on every node, each connection also has to answer a challenge
+ * first, see Handshake.  Without one, the bus port must be firewalled off
+ * from everything but the other nodes.
+ *
+ * To send, a message is queued for the peer and a sender thread per peer
+ * opens one connection the first time it needs it and keeps it, so
+ * messages from one node to another arrive in the order they were sent and
+ * the main loop never waits on the network.
+ * A message is one writeUTF string:
+ *   FROM [tab] TYPE [tab] NAME [tab] PAYLOAD
+ * where NAME is the player it is about and PAYLOAD may hold more tabs.
+ * Like Receiver, incoming messages are queued and the main loop picks them
+ * up, see Cluster for what they mean.
+ *
+ * A message to a node that is down is logged and dropped; the bus doesn't
+ * retry, the next message just tries to connect again, for at most
+ * CONNECT_TIMEOUT.
+ */
+package ChessServer;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Bus implements Runnable {
+
+	private static final int CONNECT_TIMEOUT = 2000; //Milliseconds
+	private static final int MAX_QUEUE = 10000; //Messages waiting for one peer before more are dropped
+	private static final byte[] SECRET = Handshake.secret("clusterSecret");
+
+	private final List<InetSocketAddress> nodes;
+	private final int self;
+	private final DataOutputStream[] links; //Outgoing, opened on first use by each node's sender
+	private final LinkedBlockingQueue<String>[] outboxes;
+	private final boolean[] reachable; //Whether the last message to each node went through
+	private final AtomicInteger unsent = new AtomicInteger(); //Queued and not written yet, for close()
+	private final Queue<String[]> inbox;
+	private ServerSocket server;
+	private volatile boolean running = true;
+
+	public Bus(List<InetSocketAddress> nodes, int self) {
+		this.nodes = nodes;
+		this.self = self;
+		links = new DataOutputStream[nodes.size()];
+		outboxes = newQueues(nodes.size());
+		reachable = new boolean[nodes.size()];
+		inbox = new LinkedList<>();
+		try {
+			server = new ServerSocket();
+			server.bind(nodes.get(self));
+		} catch (IOException e) {
+			Log.error("creating bus failed", "address", nodes.get(self), "error", e);
+			server = null;
+		}
+		if (SECRET == null) {
+			Log.warn("bus has no secret, firewall its port", "address", nodes.get(self));
+		}
+		for (int node = 0; node < nodes.size(); node++) {
+			reachable[node] = true;
+			if (node != self) {
+				final int to = node;
+				Thread sender = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						send(to);
+					}
+				}, "bus-" + node);
+				sender.setDaemon(true);
+				sender.start();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked") //No generic arrays, but one of LinkedBlockingQueue<?> only ever holds these
+	private static LinkedBlockingQueue<String>[] newQueues(int count) {
+		LinkedBlockingQueue<String>[] queues = (LinkedBlockingQueue<String>[]) new LinkedBlockingQueue<?>[count];
+		for (int i = 0; i < count; i++) {
+			queues[i] = new LinkedBlockingQueue<>(MAX_QUEUE);
+		}
+		return queues;
+	}
+
+	public synchronized boolean check() {
+		return !inbox.isEmpty();
+	}
+
+	//FROM, TYPE, NAME, PAYLOAD
+	public synchronized String[] next() {
+		return inbox.poll();
+	}
+
+	//Queues a message for the node.  False if it can't go: the node was unreachable last time, or is too far behind.
+	public boolean send(int node, String type, String name, String payload) {
+		if (!running) {
+			return false;
+		}
+		unsent.incrementAndGet();
+		if (!outboxes[node].offer(self + "\t" + type + "\t" + name + "\t" + payload)) {
+			unsent.decrementAndGet();
+			Log.warn("bus queue full, dropped", "node", node, "type", type);
+			return false;
+		}
+		synchronized (reachable) {
+			return reachable[node];
+		}
+	}
+
+	//One node's sender: writes its queue out, flushing whenever it runs dry.
+	private void send(int node) {
+		while (running) {
+			String message;
+			try {
+				message = outboxes[node].take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			boolean sent = false;
+			synchronized (outboxes[node]) { //Only with close(), so a slow connect holds up just this node
+				if (!running) {
+					return;
+				}
+				try {
+					if (links[node] == null) {
+						Socket socket = new Socket();
+						socket.connect(nodes.get(node), CONNECT_TIMEOUT);
+						socket.setTcpNoDelay(true);
+						try {
+							Handshake.answer(socket, SECRET);
+						} catch (IOException e) {
+							socket.close();
+							throw e;
+						}
+						links[node] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					}
+					links[node].writeUTF(message);
+					if (outboxes[node].isEmpty()) {
+						links[node].flush();
+					}
+					sent = true;
+				} catch (IOException e) {
+					Log.warn("bus send failed", "node", node, "type", message.split("\t", 3)[1], "error", e);
+					if (links[node] != null) {
+						try {
+							links[node].close();
+						} catch (IOException ignored) {
+						}
+						links[node] = null;
+					}
+				}
+			}
+			synchronized (reachable) {
+				reachable[node] = sent;
+			}
+			unsent.decrementAndGet();
+		}
+	}
+
+	//Gives what is queued, like the releases Cluster sends on the way out, a moment to go, then stops.
+	public void close() {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT + 1000;
+		while (unsent.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		running = false;
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+		}
+		for (int i = 0; i < links.length; i++) {
+			synchronized (outboxes[i]) {
+				if (links[i] != null) {
+					try {
+						links[i].close();
+					} catch (IOException e) {
+					}
+					links[i] = null;
+				}
+			}
+		}
+	}
+
+	//The node at this address whose number is from, or -1 if that isn't one of ours.
+	private int node(InetAddress address, String from) {
+		try {
+			int node = Integer.parseInt(from);
+			return node >= 0 && node < nodes.size() && address.equals(nodes.get(node).getAddress()) ? node : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private boolean known(InetAddress address) {
+		for (InetSocketAddress node : nodes) {
+			if (address.equals(node.getAddress())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Reads one peer's connection until it closes.
+	private void read(final Socket socket) {
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (!Handshake.challenge(socket, SECRET)) {
+					Log.warn("bus connection without the secret, closed", "from", socket.getRemoteSocketAddress());
+					try {
+						socket.close();
+					} catch (IOException ignored) {
+					}
+					return;
+				}
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+					while (true) {
+						String[] message = in.readUTF().split("\t", 4);
+						if (node(socket.getInetAddress(), message[0]) == -1) {
+							Log.warn("bus message from the wrong address, dropped", "from", socket.getRemoteSocketAddress(),
+									"claims", message[0]);
+							continue;
+						}
+						synchronized (Bus.this) {
+							inbox.offer(message);
+						}
+					}
+				} catch (IOException e) {
+					Log.debug("bus connection closed", "from", socket.getRemoteSocketAddress());
+				}
+			}
+		}, "bus");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public void run() {
+		while (running && server != null) {
+			try {
+				Socket socket = server.accept();
+				if (!known(socket.getInetAddress())) {
+					Log.warn("bus connection from outside the cluster, closed", "from", socket.getRemoteSocketAddress());
+					socket.close();
+					continue;
+				}
+				read(socket);
+			} catch (IOException e) {
+				if (running) {
+					Log.warn("accepting bus connection failed", "error", e);
+				}
+			}
+		}
+	}
+}
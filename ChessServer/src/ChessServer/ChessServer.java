@@ -1,133 +1,320 @@
 package ChessServer;
 
+import chesscore.Game;
+import chesscore.Tablebase;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChessServer {
 
 	static final String CRLF = "\r\n";
 	static final int MAX_GAMES = 16;
+	//How many profiles to keep in memory, run with -DcacheSize=N to change it.
+	static final int CACHE_SIZE = Integer.getInteger("cacheSize", 1000);
+	static final String CLOCK_FILE = "clocks.txt";
+	private static final java.security.SecureRandom TOKENS = new java.security.SecureRandom();
+
+	//Archives a finished game, appends it to games.pgn and tells spectators, before endGame() forgets it.
+	public static void finishGame(Profile player, String result, GameArchive archive, Ratings ratings,
+			Spectators spectators, Clocks clocks, Cluster cluster) {
+		if (player.game == null || player.opp == null) {
+			return;
+		}
+		clocks.stop(player);
+		spectators.end(player, result);
+		Profile white = player.color ? player.opp : player;
+		double score = archiveGame(player, result, archive, ratings);
+		cluster.finished(white, white.opp, score);
+		white.outcome = score == 1 ? "win" : score == 0 ? "lose" : "draw";
+		white.opp.outcome = score == 0 ? "win" : score == 1 ? "lose" : "draw";
+		Replication.record("finish", player.name, result);
+	}
 
-	public static String listNames(ArrayList<Client> players) {
-		String names = "";
-		for (int i = 0; i < players.size(); i++) {
-			if (players.get(i).id != null) {
-				names += players.get(i).id.name + '\t';
-			}
+	//The part of finishing a game a standby repeats: archive, rating and games.pgn.  Returns white's score.
+	static double archiveGame(Profile player, String result, GameArchive archive, Ratings ratings) {
+		Profile white = player.color ? player.opp : player;
+		archive.add(white.name, white.opp.name, result, player.game);
+		double score = result.equals("1-0") ? 1 : result.equals("0-1") ? 0 : 0.5;
+		ratings.record(white, white.opp, score);
+		LinkedHashMap<String, String> tags = new LinkedHashMap<>();
+		tags.put("Event", "ChessServer game");
+		tags.put("Date", new java.text.SimpleDateFormat("yyyy.MM.dd").format(new Date()));
+		tags.put("Round", "-");
+		tags.put("White", white.name);
+		tags.put("Black", white.opp.name);
+		try (PgnWriter pw = new PgnWriter(new BufferedWriter(new FileWriter("games.pgn", true)))) {
+			pw.write(tags, player.game, result);
+		} catch (IOException e) {
+			Log.error("saving game failed", "error", e);
 		}
-		return names;
+		return score;
 	}
 
-	public static String listPlayers(HashMap<String, Profile> players) {
-		String data = "";
-		for (Profile profile : players.values()) {
-			data += profile.name + (profile.client == null ? "0" : "1") + "\t";
+	//Ends the game with loser losing, for resigning and running out of time.  why follows "Your opponent ".
+	public static void forfeit(Profile loser, String why, GameArchive archive, Ratings ratings,
+			Spectators spectators, Clocks clocks, Cluster cluster) {
+		finishGame(loser, loser.color ? "1-0" : "0-1", archive, ratings, spectators, clocks, cluster);
+		loser.send("gameover lose" + CRLF);
+		loser.oppSend("gameover win" + CRLF
+				+ "svrmsg Your opponent " + why + "." + CRLF);
+		loser.endGame();
+		Replication.record("end", loser.name);
+	}
+
+	//Tablebases to adjudicate endgames with, from -Dtablebases=DIR, or null to play every game out.
+	static Tablebase loadTablebases(String dir) {
+		if (dir == null) {
+			return null;
+		}
+		try {
+			Tablebase tablebase = new Tablebase(new File(dir));
+			Log.info("tablebases loaded", "dir", dir, "tables", tablebase.size());
+			return tablebase;
+		} catch (IOException e) {
+			Log.error("loading tablebases failed", "dir", dir, "error", e);
+			return null;
 		}
-		return data;
 	}
 
-	public static void saveData(HashMap<String, Profile> players) {
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter("profiles.txt"))) {
-
-			for (Profile profile : players.values()) {
-				if (!profile.color) {
-					int status = 0;
-					if (profile.opp != null) {
-						status = 1;
-						if (profile.game != null) {
-							status = 2;
-						}
-					}
-					bw.write(profile.name + "\t" + profile.password + "\t" + status + CRLF);
-					if (status != 0) {
-						bw.write(profile.opp.name + "\t" + profile.opp.password + CRLF);
-					}
-					if (status == 2) {
-						String gameState = profile.game.gameState();
-						for (int j = 0; j < 8; j++) {
-							bw.write(gameState.substring(8 * j, 8 * (j + 1)) + CRLF);
-						}
-						bw.write(gameState.substring(64) + CRLF);
-					}
-				}
+	//What a player who just logged in needs to pick up where they left off: their game, or a request for them.
+	static void resume(Profile player) {
+		Game game = player.game;
+		if (game != null) {
+			if (player.send("init " + player.colorWord() + "\t" + game.record() + CRLF)) {
+				player.seen = game;
 			}
-			bw.close();
-		} catch (Exception e) {
-			System.out.println("Problem with saving file: " + e);
+		} else if (player.opp != null && player.color) {
+			player.send("gamereq " + player.opp.name + CRLF);
 		}
 	}
 
-	public static void loadData(HashMap<String, Profile> players) {
-		try (BufferedReader br = new BufferedReader(new FileReader("profiles.txt"))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				String[] data = line.split("\t");
-				Profile profile = new Profile(data[0], data[1]);
-				players.put(data[0], profile);
-				int status = Integer.parseInt(data[2]);
-
-				if (status != 0) {
-					String[] oppData = br.readLine().split("\t");
-					Profile opp = new Profile(oppData[0], oppData[1]);
-					players.put(oppData[0], opp);
-					profile.setOpp(opp);
-					if (status == 2) {
-						String gameData = "";
-						for (int i = 0; i < 8; i++) {
-							gameData += br.readLine();
-						}
-						gameData += br.readLine();
-						profile.setGame(new Game(gameData));
-					}
-				}
+	/*
+	 * For a client coming back after a dropped connection, that had the
+	 * first ply moves of its game (the game's sequence number), or -1 if it
+	 * wasn't playing.  If the game is the one it had, it only needs the
+	 * moves since, which are all the opponent's since it's been away.  If
+	 * that game ended, just the result.  Anything else gets everything.
+	 */
+	static void catchUp(Profile player, int ply) {
+		Game game = player.game;
+		if (game != null && game == player.seen && ply >= 0 && ply <= game.historyLength()) {
+			StringBuilder missed = new StringBuilder();
+			for (int i = ply; i < game.historyLength(); i++) {
+				missed.append("move ").append(Game.moveString(game.historyMove(i))).append(CRLF);
+			}
+			if (missed.length() > 0) {
+				player.send(missed.toString());
 			}
-			br.close();
-		} catch (IOException | NumberFormatException e) {
-			System.out.println("File reading problem: " + e);
+			Log.debug("caught up", "player", player.name, "moves", game.historyLength() - ply);
+		} else if (game == null && ply >= 0 && player.seen != null && player.outcome != null) {
+			player.send("gameover " + player.outcome + CRLF);
+			player.seen = null;
+		} else {
+			resume(player);
+			Log.debug("caught up", "player", player.name, "full", true);
 		}
 	}
 
+	//A new session token for a player who just logged in, so they can resume without the password.
+	static void issueToken(Profile player) {
+		byte[] bytes = new byte[16];
+		TOKENS.nextBytes(bytes);
+		StringBuilder token = new StringBuilder(32);
+		for (byte b : bytes) {
+			token.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+		}
+		player.token = token.toString();
+		player.send("session " + player.token + CRLF);
+	}
+
 	public static void main(String[] args) {
 
 		ArrayList<Client> clients = new ArrayList();
-		HashMap<String, Profile> profiles = new HashMap();
-
-		loadData(profiles);
-		saveData(profiles);
+		final ProfileCache profiles = new ProfileCache("profiles.txt", CACHE_SIZE);
+		final Ratings ratings = new Ratings();
+		profiles.setRatings(ratings);
+		final GameArchive archive = new GameArchive("archive");
+		Tablebase tablebase = loadTablebases(System.getProperty("tablebases"));
+		Metrics.start("metrics.txt");
+		final Clocks clocks = new Clocks();
+
+		if (Standby.PRIMARY != null) { //Follow a primary until it goes away, then take over
+			new Standby(Standby.PRIMARY).follow(profiles, ratings, archive, clocks);
+		} else {
+			profiles.load();
+			clocks.load(CLOCK_FILE);
+		}
+		profiles.save();
+		Replication.start();
+		Presence presence = new Presence();
+		Directory directory = new Directory(profiles.names());
+		Broadcaster broadcaster = new Broadcaster();
+		Spectators spectators = new Spectators(broadcaster);
+		final Matchmaker matchmaker = new Matchmaker();
+		new Thread(matchmaker).start();
+		new Thread(ratings).start();
+		final Cluster cluster = new Cluster();
+		cluster.start();
 
 		Receiver receiver = new Receiver();
 		Thread receiverThread = new Thread(receiver);
 		Random rand = new Random();
 		receiverThread.start();
 
-		Console console = new Console(profiles);
+		final AdminCommands console = new AdminCommands(profiles, archive, matchmaker, ratings);
+		AdminServer adminServer = new AdminServer(console);
+		if (AdminServer.PORT > 0) {
+			Thread admin = new Thread(adminServer, "admin");
+			admin.setDaemon(true);
+			admin.start();
+		}
+		//Run with -headless, or on a machine without a display, to take commands from standard input.
+		if (Arrays.asList(args).contains("-headless") || java.awt.GraphicsEnvironment.isHeadless()) {
+			Thread stdin = new Thread(new StdinConsole(console), "console");
+			stdin.setDaemon(true);
+			stdin.start();
+		} else {
+			new Console(console);
+		}
+		/*
+		 * On a signal, shut down the same way "exit" does, and wait for the
+		 * main loop to finish.  If it doesn't in time, save what we can.
+		 */
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final AtomicBoolean signalled = new AtomicBoolean();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				signalled.set(true);
+				console.shutdown();
+				try {
+					if (!stopped.await(Shutdown.TIMEOUT + 1000, TimeUnit.MILLISECONDS)) {
+						Log.error("main loop did not stop, saving anyway");
+						ratings.applyBatch();
+						profiles.save();
+						archive.close();
+						Log.flush();
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		}, "shutdown"));
+		Metrics.gauge("Profiles in memory", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return profiles.residentCount();
+			}
+		});
+		Metrics.gauge("Seeking", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return matchmaker.waiting();
+			}
+		});
+		Metrics.gauge("Clocks running", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return clocks.running();
+			}
+		});
+		if (cluster.enabled()) {
+			Metrics.gauge("Guests from other nodes", new Metrics.Gauge() {
+				@Override
+				public long value() {
+					return cluster.guests();
+				}
+			});
+		}
 
-		System.out.println("The server has started.");
+		Shutdown.reportStart();
 
+		Shutdown shutdown = null;
 		while (true) {
 
-			if (console.checkShutdown()) {
-				saveData(profiles);
-				System.exit(1);
+			if (shutdown == null && console.checkShutdown()) {
+				shutdown = new Shutdown();
+				receiver.close();
+				adminServer.close();
+				cluster.close();
+				matchmaker.stop();
+				for (Client client : clients) {
+					client.stopReading();
+					client.send("svrmsg The server is shutting down." + CRLF);
+				}
+				Log.info("shutting down", "clients", clients.size());
 			}
-			
+			if (shutdown != null && shutdown.drained(clients)) {
+				break;
+			}
+
 			if (receiver.check()) {
 				Client next = new Client(receiver.nextConnection());
+				Metrics.connections.incrementAndGet();
+				Metrics.connected.incrementAndGet();
 				next.send("svrmsg Please log in or register." + CRLF);
 				Thread thread = new Thread(next);
 				thread.start();
 				clients.add(next);
 			}
 
+			cluster.poll(profiles, ratings, matchmaker);
+			Replication.attach(profiles, clocks);
+
+			for (Clocks.Clock flagged : clocks.expired()) {
+				Profile loser = cluster.owns(flagged.toMove()) ? profiles.get(flagged.toMove()) : cluster.find(flagged.toMove());
+				if (loser != null && loser.opp != null && loser.game != null
+						&& loser.opp.name.equals(loser.color ? flagged.white : flagged.black)) {
+					loser.send("svrmsg You ran out of time." + CRLF);
+					forfeit(loser, "ran out of time", archive, ratings, spectators, clocks, cluster);
+				}
+			}
+
+			while (matchmaker.check()) {
+				Matchmaker.Seek[] match = matchmaker.nextMatch();
+				Profile first = match[0].profile;
+				Profile second = match[1].profile;
+				if (first.client == null || second.client == null || cluster.away(first.name)
+						|| cluster.away(second.name) || !Profile.pair(first, second)) {
+					//Someone left or got paired some other way
+					if (first.client != null && first.opp == null) {
+						matchmaker.seek(first);
+					}
+					if (second.client != null && second.opp == null) {
+						matchmaker.seek(second);
+					}
+					continue;
+				}
+				first.startGame(new Game(), rand.nextBoolean());
+				Replication.record("pair", first.name, second.name);
+				Replication.record("start", first.name, first.color ? "1" : "0");
+				first.client.send("svrmsg Matched with " + second.name + " (" + second.rating + ")." + CRLF
+						+ "init " + first.colorWord() + CRLF);
+				second.client.send("svrmsg Matched with " + first.name + " (" + first.rating + ")." + CRLF
+						+ "init " + second.colorWord() + CRLF);
+				first.seen = first.game;
+				second.seen = second.game;
+				clocks.start(first);
+			}
+
 			for (int i = 0; i < clients.size(); i++) {
 				if (clients.get(i).closed()) {
-					System.out.print("Deleted client: ");
 					if (clients.get(i).id == null) {
-						System.out.println("Unidentified");
-					} else {
-						System.out.println(clients.get(i).id.name);
-						clients.get(i).id.logOff();
+						Log.info("client deleted", "player", "unidentified");
+					} else if (clients.get(i).id.logOff(clients.get(i))) {
+						Log.info("client deleted", "player", clients.get(i).id.name);
+						presence.remove(clients.get(i).id.name);
+						matchmaker.cancel(clients.get(i).id.name);
+						directory.setOnline(clients.get(i).id.name, false);
+						profiles.trim();
+					} else { //They came back on a new connection before we noticed this one drop
+						Log.info("client replaced", "player", clients.get(i).id.name);
 					}
+					presence.unsubscribe(clients.get(i));
+					Metrics.connections.decrementAndGet();
+					spectators.unwatch(clients.get(i));
 					clients.remove(i);
 					i--;
 					continue;
@@ -146,18 +333,29 @@ public class ChessServer {
 						type = message.substring(0, space);
 						data = message.substring(space + 1);
 					}
-					System.out.println(type + " : " + data);
+					if (Log.enabled(Log.DEBUG)) {
+						Log.debug("message", "type", type, "data", type.equals("login") || type.equals("register")
+								? data.split("\t")[0] : data); //Not the password
+					}
+
+					if (cluster.intercept(sender, type, message)) { //Their game is on another node
+						continue;
+					}
 
 					String reply;
+					long handling = System.nanoTime();
 					switch (type) {
 
 						case "request":
-							Profile recipient = profiles.get(data);
+							Profile recipient = cluster.owns(data) ? profiles.get(data) : cluster.guest(data, clients);
 							if (sender.id.opp == null) { //request already initiated
 								if (recipient != null) { //recpient's profile exists
-									if (recipient.opp == null) { //recipient has not been requested
-										sender.id.setOpp(recipient);
-										if (recipient.client != null) { //recipient is online
+									if (!cluster.away(recipient.name) && Profile.pair(sender.id, recipient)) { //recipient has not been requested
+										Replication.record("pair", sender.id.name, recipient.name);
+										if (recipient.guest) { //Their node tells them, or tells us no
+											sender.id.setTime();
+											cluster.invite(sender.id, recipient);
+										} else if (recipient.client != null) { //recipient is online
 											sender.id.setTime();
 											recipient.client.send("gamereq " + sender.id.name + CRLF);
 										}
@@ -171,8 +369,8 @@ public class ChessServer {
 							} else {
 								reply = "svrmsg You are already involved in a request." + CRLF;
 							}
-							System.out.println(reply);
-							recipient.client.send(reply);
+							Log.debug("reply", "reply", reply.trim());
+							sender.send(reply);
 							break;
 
 						case "chat":
@@ -181,20 +379,17 @@ public class ChessServer {
 
 						case "login": //login NAME [tab] PASSWORD
 							String[] loginParams = data.split("\t");
-							if (profiles.containsKey(loginParams[0])) {
-								Profile temp = profiles.get(loginParams[0]);
+							Profile temp = cluster.owns(loginParams[0]) ? profiles.get(loginParams[0]) : null;
+							if (temp != null) {
 								if (temp.password.equals(loginParams[1])) {
 									if (temp.connect(sender)) {
-										reply = "svrmsg Successfully logged in. " + CRLF
-												+ "players " + listNames(clients) + CRLF;
-										if (sender.id.game != null) {
-											sender.send("init " + sender.id.colorWord() + "\t" 
-													+ sender.id.game.gameState() + CRLF);
-											
-										} else {
-											if (sender.id.opp != null && sender.id.color) {
-												sender.send("gamereq " + sender.id.opp.name + CRLF);
-											}
+										reply = "svrmsg Successfully logged in. " + CRLF;
+										presence.add(temp.name);
+										ratings.refresh(temp);
+										directory.setOnline(temp.name, true);
+										issueToken(temp);
+										if (!cluster.resume(temp)) {
+											resume(temp);
 										}
 									} else {
 										reply = "svrmsg This player is already online, you hacker!" + CRLF;
@@ -205,33 +400,149 @@ public class ChessServer {
 							} else {
 								reply = "svrmsg Name unknown." + CRLF;
 							}
-							System.out.println("Server: " + reply);
+							Log.debug("reply", "reply", reply.trim());
 							sender.send(reply);
+							if (sender.id != null) {
+								presence.subscribe(sender);
+							}
 
 							break;
 
 						case "register":  // register NAME [tab] PASSWORD
 							String[] regParams = data.split("\t");
-							if (!profiles.containsKey(regParams[0])) {
-								Profile n00b = new Profile(regParams[0], regParams[1]);
+							Profile n00b = new Profile(regParams[0], regParams[1]);
+							if (!cluster.owns(n00b.name)) {
+								reply = "svrmsg This name belongs on another server." + CRLF;
+							} else if (profiles.register(n00b)) {
+								Replication.record("register", n00b.name, n00b.password);
 								n00b.connect(sender);
-								profiles.put(regParams[0], n00b);
-								reply = "svrmsg Successfully registered." + CRLF
-										+ "players " + listNames(clients) + CRLF;
+								issueToken(n00b);
+								presence.add(n00b.name);
+								directory.add(n00b.name);
+								ratings.set(n00b.name, n00b.rating);
+								directory.setOnline(n00b.name, true);
+								reply = "svrmsg Successfully registered." + CRLF;
 							} else {
 								reply = "svrmsg Username already exists." + CRLF;
 							}
 							sender.send(reply);
+							if (sender.id != null) {
+								presence.subscribe(sender);
+							}
+							break;
+
+						//resume NAME [tab] TOKEN [tab] PLY, logging back in after a dropped connection with the
+						//token from "session".  PLY is how many moves of its game the client has, -1 if none.
+						case "resume":
+							String[] resumeParams = data.split("\t");
+							Profile back = resumeParams.length == 3 && cluster.owns(resumeParams[0])
+									? profiles.get(resumeParams[0]) : null;
+							if (back == null || back.token == null || !back.token.equals(resumeParams[1])) {
+								sender.send("expired" + CRLF); //The client logs in instead
+								break;
+							}
+							back.takeOver(sender);
+							presence.add(back.name);
+							ratings.refresh(back);
+							directory.setOnline(back.name, true);
+							sender.send("svrmsg Welcome back." + CRLF);
+							if (!cluster.resume(back)) {
+								try {
+									catchUp(back, Integer.parseInt(resumeParams[2]));
+								} catch (NumberFormatException e) {
+									resume(back);
+								}
+							}
+							presence.subscribe(sender);
+							break;
+
+						case "subscribe": //Resync after a missed presence update
+							if (sender.id != null) {
+								presence.subscribe(sender);
+							}
+							break;
+
+						case "list": // list [OFFSET [tab] PREFIX], a page of every player whose name starts with PREFIX
+							String[] listParams = data.equals("N/A") ? new String[0] : data.split("\t", 2);
+							try {
+								int offset = listParams.length > 0 && !listParams[0].isEmpty() ? Integer.parseInt(listParams[0]) : 0;
+								sender.send(directory.page(listParams.length > 1 ? listParams[1] : "", offset));
+							} catch (NumberFormatException e) {
+								sender.send("svrmsg Usage: list OFFSET [tab] PREFIX" + CRLF);
+							}
+							break;
+
+						case "seek": //Find an opponent of a similar rating
+							if (sender.id == null) {
+								reply = "svrmsg Please log in." + CRLF;
+							} else if (sender.id.opp != null) {
+								reply = "svrmsg You are already involved in a request." + CRLF;
+							} else if (matchmaker.seek(sender.id)) {
+								reply = "svrmsg Looking for an opponent near " + sender.id.rating + "." + CRLF;
+							} else {
+								reply = "svrmsg You are already looking for an opponent." + CRLF;
+							}
+							sender.send(reply);
+							break;
+
+						case "unseek":
+							if (sender.id == null) {
+								sender.send("svrmsg Please log in." + CRLF);
+								break;
+							}
+							sender.send(matchmaker.cancel(sender.id.name) ? "svrmsg Stopped looking." + CRLF
+									: "svrmsg You weren't looking for an opponent." + CRLF);
+							break;
+
+						case "rating": //rating [NAME], your own if no name is given
+							String rated = !data.equals("N/A") ? data : sender.id != null ? sender.id.name : null;
+							if (rated == null) {
+								sender.send("svrmsg Please log in." + CRLF);
+							} else if (profiles.contains(rated)) {
+								sender.send("svrmsg " + rated + " is rated " + ratings.rating(rated) + ", rank "
+										+ ratings.rank(rated) + " of " + ratings.size() + "." + CRLF);
+							} else {
+								sender.send("svrmsg Player not found" + CRLF);
+							}
+							break;
+
+						case "top": //top [OFFSET], a page of the leaderboard
+							try {
+								sender.send(ratings.page(data.equals("N/A") ? 0 : Integer.parseInt(data)));
+							} catch (NumberFormatException e) {
+								sender.send("svrmsg Usage: top OFFSET" + CRLF);
+							}
+							break;
+
+						case "watch": //watch NAME, follow the game that player is in
+							Profile watched = cluster.owns(data) ? profiles.get(data) : cluster.find(data);
+							if (watched == null) {
+								sender.send("svrmsg Player not found" + CRLF);
+							} else if (watched.game == null) {
+								sender.send("svrmsg " + watched.name + " is not playing." + CRLF);
+							} else {
+								spectators.watch(sender, watched);
+							}
+							break;
+
+						case "unwatch":
+							spectators.unwatch(sender);
 							break;
 
 						case "refresh":
-							sender.send("players " + listNames(clients) + CRLF);
+							sender.send("players " + presence.names() + CRLF);
 							break;
 
 						case "cancel":
-							if (System.currentTimeMillis() - sender.id.time > 30000) {
-								sender.id.resetRequest();
-								reply = "Request canceled." + CRLF;
+							if (sender.id == null) {
+								reply = "svrmsg Please log in." + CRLF;
+							} else if (System.currentTimeMillis() - sender.id.time > 30000) {
+								if (sender.id.unpair()) {
+									Replication.record("unpair", sender.id.name);
+									reply = "Request canceled." + CRLF;
+								} else {
+									reply = "No request to cancel." + CRLF;
+								}
 							} else {
 								reply = "You must wait at least 30 seconds before cancelling a request." + CRLF;
 							}
@@ -239,64 +550,105 @@ public class ChessServer {
 							break;
 
 						case "accept":
-							Game game = new Game();
-							sender.id.setGame(game);
-							sender.id.setColor(rand.nextBoolean());
-							sender.send("init " + sender.id.colorWord() + CRLF);
-							sender.id.oppSend("init " + sender.id.opp.colorWord() + CRLF);
+							if (sender.id.startGame(new Game(), rand.nextBoolean())) {
+								Replication.record("start", sender.id.name, sender.id.color ? "1" : "0");
+								sender.send("init " + sender.id.colorWord() + CRLF);
+								sender.id.seen = sender.id.game;
+								if (sender.id.oppSend("init " + sender.id.opp.colorWord() + CRLF)) {
+									sender.id.opp.seen = sender.id.game;
+								}
+								clocks.start(sender.id);
+							} else {
+								sender.send("svrmsg There is no game to accept." + CRLF);
+							}
 							break;
 
 						case "decline":
 							sender.id.oppSend("decline" + CRLF);
-							sender.id.opp.resetRequest();
+							if (sender.id.unpair()) {
+								Replication.record("unpair", sender.id.name);
+							}
 							break;
 
 						case "move":
 							Game currentGame = sender.id.game;
-							System.out.println("Incoming move from " + sender.id.colorWord() + " and the current turn is " + (currentGame.getTurn() ? "black" : "white"));
+							Log.debug("move", "player", sender.id.name, "color", sender.id.colorWord(),
+									"turn", currentGame.getTurn() ? "black" : "white", "move", data);
 
 							if (currentGame.getTurn() == sender.id.color) {
-
-
-								int startRank = data.charAt(0) - '0';
-								int startFile = data.charAt(1) - '0';
-								int endRank = data.charAt(2) - '0';
-								int endFile = data.charAt(3) - '0';
-
-								if (data.length() == 5) {
-									currentGame.move(startRank, startFile, endRank, endFile, data.charAt(4));
-								} else {
-									currentGame.move(startRank, startFile, endRank, endFile);
+								long moving = System.nanoTime();
+								short move = Game.parseMove(data);
+								if (!currentGame.isLegal(move)) {
+									//The client let it through, so its board is off; the game as it is puts it right.
+									Metrics.rejected.incrementAndGet();
+									Log.info("illegal move", "player", sender.id.name, "move", data);
+									sender.send("illegal " + data + CRLF);
+									resume(sender.id);
+									break;
 								}
+								long validated = System.nanoTime() - moving;
 
-								int gameover = currentGame.checkmate(!sender.id.color);
-								sender.id.oppSend("move " + data + CRLF);
+								if (!clocks.moved(sender.id)) { //The wheel hasn't caught up with the flag yet
+									sender.send("svrmsg You ran out of time." + CRLF);
+									forfeit(sender.id, "ran out of time", archive, ratings, spectators, clocks, cluster);
+									break;
+								}
 
-								if (gameover != 0) {
-									if (gameover == 1) {
-										sender.send("gameover win" + CRLF);
-										sender.id.oppSend("gameover lose" + CRLF);
-									} else {
+								long playing = System.nanoTime();
+								currentGame.move(move);
 
-										sender.send("gameover draw" + CRLF);
-										sender.id.oppSend("gameover draw" + CRLF);
+								Replication.record("move", sender.id.name, data);
+								long checking = System.nanoTime();
+								Metrics.move.record(validated + checking - playing);
+								int gameover = currentGame.checkmate(!sender.id.color); //Works out the legal moves for the reply
+								Metrics.checkmate.record(System.nanoTime() - checking);
+								sender.id.oppSend("move " + data + CRLF);
+								spectators.move(sender.id, data); //After the players, who shouldn't wait
+
+								String outcome = gameover == 1 ? "win" : gameover == -1 ? "draw" : null; //For the sender
+								if (outcome == null && tablebase != null) {
+									int score = tablebase.probe(currentGame); //For the opponent, who moves next
+									if (score != Tablebase.UNKNOWN) {
+										outcome = score == 0 ? "draw" : score < 0 ? "win" : "lose";
+										String mate = "mate in " + (Tablebase.MATE - Math.abs(score) + 1) / 2 + " for ";
+										sender.send("svrmsg The tablebases say this is " + (score == 0 ? "a draw"
+												: mate + (score < 0 ? "you" : "your opponent")) + ", so the game is over." + CRLF);
+										sender.id.oppSend("svrmsg The tablebases say this is " + (score == 0 ? "a draw"
+												: mate + (score < 0 ? "your opponent" : "you")) + ", so the game is over." + CRLF);
+										Metrics.adjudicated.incrementAndGet();
+										Log.info("adjudicated", "player", sender.id.name, "outcome", outcome);
 									}
-									sender.id.gameOver();
 								}
-								currentGame.print();
+								if (outcome != null) {
+									finishGame(sender.id, outcome.equals("draw") ? "1/2-1/2" : (outcome.equals("win") == sender.id.color ? "0-1" : "1-0"),
+											archive, ratings, spectators, clocks, cluster);
+									sender.send("gameover " + outcome + CRLF);
+									sender.id.oppSend("gameover " + (outcome.equals("draw") ? "draw" : outcome.equals("win") ? "lose" : "win") + CRLF);
+									sender.id.endGame();
+									Replication.record("end", sender.id.name);
+								}
+								if (Log.enabled(Log.DEBUG)) { //Building the board isn't free
+									Log.debug("board\n" + currentGame.board());
+								}
 							}
 							break;
 
 						case "resign":
-							sender.send("gameover lose" + CRLF);
-							sender.id.oppSend("gameover win" + CRLF
-									+ "svrmsg Your opponent has resigned." + CRLF);
-							sender.id.gameOver();
+							forfeit(sender.id, "has resigned", archive, ratings, spectators, clocks, cluster);
 							break;
 					} // End of message parsing
+					Metrics.command(type).record(System.nanoTime() - handling);
 				}// End of message checking
 			} // End of player checking
+			presence.flush();
+			console.runTasks();
 		} // End of main loop
+		presence.flush();
+		shutdown.finish(broadcaster, ratings, profiles, archive, clocks, clients);
+		stopped.countDown();
+		if (!signalled.get()) { //A signal is already taking the JVM down, and exit() would wait for it forever
+			System.exit(0);
+		}
 	}// End of main
 } // ALL THE BRACKETS
 
@@ -9,11 +9,25 @@ public class Client implements Runnable {
 
 	private Socket socket;
 	private Queue<String> messages = new LinkedList<>();
+	private Queue<Long> arrivals = new LinkedList<>(); //When each message was read, for Metrics.dispatch
 	private DataOutputStream os;
 	private BufferedReader br;
 	private boolean mark;
+	private volatile boolean deaf; //Ignoring anything read from now on, for shutting down
+	//Messages for a Broadcaster to write, so fan-out never waits on this socket.
+	private final Queue<byte[]> backlog = new LinkedList<>();
+	private boolean flushing; //Whether a Broadcaster thread is writing the backlog
+	static final int MAX_BACKLOG = 256;
 	
 	public Profile id;
+	public String watching; //White's name in the game this client is spectating, if any
+	boolean behind; //Missed a move it was watching, see Spectators.  Main loop only.
+
+	//For clients that aren't a socket, see Peer.
+	protected Client() {
+		mark = false;
+		id = null;
+	}
 
 	public Client(Socket s) {
 		socket = s;
@@ -24,7 +38,7 @@ public class Client implements Runnable {
 			br = new BufferedReader(new InputStreamReader(is));
 			os = new DataOutputStream(socket.getOutputStream());
 		} catch (Exception e) {
-			System.out.println("Problem with creating io: " + e);
+			Log.error("creating client io failed", "error", e);
 		}
 	}
 
@@ -33,16 +47,104 @@ public class Client implements Runnable {
 	}
 
 	public synchronized String nextMessage() {
+		Long arrival = arrivals.poll();
+		if (arrival != null) {
+			Metrics.inbound.decrementAndGet();
+			Metrics.dispatch.record(System.nanoTime() - arrival);
+		}
 		return messages.poll();
 	}
 
 	public synchronized boolean send(String message) {
+		long start = System.nanoTime();
 		try {
 			os.writeBytes(message);
+			Metrics.sent.incrementAndGet();
 			return true;
 		} catch (IOException e) {
-			System.out.println("Some problem with sending: " + e);
+			Log.warn("sending failed", "error", e);
+			Metrics.sendErrors.incrementAndGet();
 			return false;
+		} finally {
+			Metrics.write.record(System.nanoTime() - start);
+		}
+	}
+
+	//Writes bytes that are shared with other clients as they are.
+	public synchronized boolean send(byte[] message) {
+		long start = System.nanoTime();
+		try {
+			os.write(message);
+			Metrics.sent.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			Log.warn("sending failed", "error", e);
+			Metrics.sendErrors.incrementAndGet();
+			return false;
+		} finally {
+			Metrics.write.record(System.nanoTime() - start);
+		}
+	}
+
+	/*
+	 * Adds to the backlog.  Returns 1 if nobody is writing it yet and the
+	 * caller should start flush(), 0 if someone already is, and -1 if the
+	 * backlog is full and the message was dropped.
+	 */
+	int queue(byte[] message) {
+		synchronized (backlog) {
+			if (backlog.size() >= MAX_BACKLOG) {
+				return -1;
+			}
+			backlog.offer(message);
+			Metrics.outbound.incrementAndGet();
+			if (flushing) {
+				return 0;
+			}
+			flushing = true;
+			return 1;
+		}
+	}
+
+	//How many messages are waiting to be written.
+	int backlog() {
+		synchronized (backlog) {
+			return backlog.size();
+		}
+	}
+
+	//Writes out the backlog until it's empty.  Only one thread at a time gets here, see queue().
+	void flush() {
+		while (true) {
+			byte[] message;
+			synchronized (backlog) {
+				message = backlog.poll();
+				if (message == null) {
+					flushing = false;
+					return;
+				}
+			}
+			Metrics.outbound.decrementAndGet();
+			if (!send(message)) {
+				synchronized (backlog) {
+					Metrics.outbound.addAndGet(-backlog.size());
+					backlog.clear();
+					flushing = false;
+				}
+				return;
+			}
+		}
+	}
+
+	//Drops whatever arrives from now on, so the queue only holds what came before.
+	public void stopReading() {
+		deaf = true;
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
 		}
 	}
 
@@ -50,16 +152,37 @@ public class Client implements Runnable {
 		return mark;
 	}
 
+	//Marks the client for the main loop to delete, see Peer.
+	protected void markClosed() {
+		mark = true;
+	}
+
+	//Queues a message for the main loop, unless we've stopped listening.
+	void received(String message) {
+		if (deaf) {
+			return;
+		}
+		synchronized (this) {
+			messages.offer(message);
+			arrivals.offer(System.nanoTime());
+		}
+		Metrics.received.incrementAndGet();
+		Metrics.inbound.incrementAndGet();
+	}
+
 	public void run() {
 
 		while (true) {
 			try {
 				String message = br.readLine();
-				synchronized (this) {
-					messages.offer(message);
+				if (message == null) { //The other end closed the connection
+					Log.debug("client logged off");
+					mark = true;
+					break;
 				}
+				received(message);
 			} catch (IOException e) {
-				System.out.println("Client logged off.");
+				Log.debug("client logged off");
 				mark = true;
 				break;
 			}
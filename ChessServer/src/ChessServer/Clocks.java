@@ -0,0 +1,252 @@
+/*
+ * Chess clocks: every game gets the same base time plus an increment per
+ * move, set with -DclockBase=SECONDS and -DclockIncrement=SECONDS.  A base
+ * of 0 turns clocks off.
+ *
+ * The time left goes with the games it belongs to.  A shutdown writes it
+ * to clocks.txt next to the profile file, and the next start carries on
+ * from there without counting the time the server was down.  A standby
+ * gets it as a clock event whenever a clock starts or a move is made, and
+ * every running clock right after its snapshot, see Replication:
+ *   clock NAME WHITE_MS BLACK_MS   NAME just moved, the opponent's clock runs
+ *
+ * Each running clock has one timer in a TimingWheel for the moment the
+ * side to move runs out, moved whenever a move is made.  The main loop
+ * calls expired() every pass to find the flags that fell.  Clocks are found
+ * by white's name rather than by Profile, since the profiles can be evicted
+ * and read back in while both players are offline and their time runs.
+ *
+ * Players are told the time left after every move with
+ *   clock WHITE_MS BLACK_MS
+ */
+package ChessServer;
+
+import java.io.*;
+import java.util.*;
+
+public class Clocks {
+
+	private static final String CRLF = "\r\n";
+	public static final long BASE = Integer.getInteger("clockBase", 300) * 1000L;
+	public static final long INCREMENT = Integer.getInteger("clockIncrement", 2) * 1000L;
+	private static final long TICK = 10; //Milliseconds
+	private static final int SLOTS = 4096; //About 41 seconds per turn of the wheel
+
+	public static class Clock {
+
+		public final String white;
+		public final String black;
+		long whiteLeft;
+		long blackLeft;
+		boolean turn; //Whose clock is running, false for white like Game
+		long since; //When it started running
+		TimingWheel.Timer<Clock> flag;
+
+		Clock(String white, String black, long now) {
+			this.white = white;
+			this.black = black;
+			whiteLeft = BASE;
+			blackLeft = BASE;
+			turn = false;
+			since = now;
+		}
+
+		//The name of whoever is to move, and so whose flag falls first.
+		public String toMove() {
+			return turn ? black : white;
+		}
+
+		long left(boolean side, long now) {
+			long left = side ? blackLeft : whiteLeft;
+			return side == turn ? left - (now - since) : left;
+		}
+
+		String message(long now) {
+			return "clock " + Math.max(0, left(false, now)) + " " + Math.max(0, left(true, now)) + CRLF;
+		}
+	}
+
+	private final HashMap<String, Clock> clocks; //By white's name
+	private final TimingWheel<Clock> wheel;
+	private final ArrayList<Clock> expired;
+
+	public Clocks() {
+		clocks = new HashMap<>();
+		wheel = new TimingWheel<>(TICK, SLOTS, System.currentTimeMillis());
+		expired = new ArrayList<>();
+	}
+
+	public static boolean enabled() {
+		return BASE > 0;
+	}
+
+	private static String whiteName(Profile player) {
+		return player.color ? player.opp.name : player.name;
+	}
+
+	//Starts white's clock for a game that was just set up.
+	public void start(Profile player) {
+		if (!enabled()) {
+			return;
+		}
+		Profile white = player.color ? player.opp : player;
+		long now = System.currentTimeMillis();
+		Clock clock = new Clock(white.name, white.opp.name, now);
+		stop(player);
+		clocks.put(white.name, clock);
+		clock.flag = wheel.schedule(clock, now + clock.whiteLeft);
+		send(white, clock.message(now));
+		record(clock);
+	}
+
+	/*
+	 * Called before a move is played.  Returns false if the mover's time had
+	 * already run out, so the move should not count; otherwise stops their
+	 * clock, adds the increment, starts the opponent's and tells both players.
+	 */
+	public boolean moved(Profile mover) {
+		Clock clock = clocks.get(whiteName(mover));
+		if (clock == null) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		long left = clock.left(clock.turn, now);
+		if (left <= 0) {
+			return false;
+		}
+		if (clock.turn) {
+			clock.blackLeft = left + INCREMENT;
+		} else {
+			clock.whiteLeft = left + INCREMENT;
+		}
+		clock.turn = !clock.turn;
+		clock.since = now;
+		wheel.cancel(clock.flag);
+		clock.flag = wheel.schedule(clock, now + (clock.turn ? clock.blackLeft : clock.whiteLeft));
+		send(mover, clock.message(now));
+		record(clock);
+		return true;
+	}
+
+	//Tells a standby how the clock stands, just after it started or was switched.
+	private static void record(Clock clock) {
+		Replication.record("clock", clock.turn ? clock.white : clock.black,
+				Long.toString(clock.whiteLeft), Long.toString(clock.blackLeft));
+	}
+
+	//Sends a standby that just attached every clock as it is now.
+	public void replicate() {
+		long now = System.currentTimeMillis();
+		for (Clock clock : clocks.values()) {
+			Replication.record("clock", clock.turn ? clock.white : clock.black,
+					Long.toString(clock.left(false, now)), Long.toString(clock.left(true, now)));
+		}
+	}
+
+	/*
+	 * For a standby: the clock of the mover's game as a clock event has it,
+	 * with the opponent's running since the event was made.
+	 */
+	public void set(Profile mover, long whiteLeft, long blackLeft, long since) {
+		if (mover.opp == null) {
+			return;
+		}
+		stop(mover);
+		Profile white = mover.color ? mover.opp : mover;
+		add(white.name, white.opp.name, whiteLeft, blackLeft, !mover.color, since);
+	}
+
+	private void add(String white, String black, long whiteLeft, long blackLeft, boolean turn, long since) {
+		Clock clock = new Clock(white, black, since);
+		clock.whiteLeft = whiteLeft;
+		clock.blackLeft = blackLeft;
+		clock.turn = turn;
+		clocks.put(white, clock);
+		clock.flag = wheel.schedule(clock, since + (turn ? blackLeft : whiteLeft));
+	}
+
+	//Forgets every clock, for a standby about to take a new snapshot.
+	public void clear() {
+		for (Clock clock : clocks.values()) {
+			wheel.cancel(clock.flag);
+		}
+		clocks.clear();
+	}
+
+	/*
+	 * Writes every running clock to the file, one per line:
+	 *   WHITE [tab] BLACK [tab] WHITE_MS [tab] BLACK_MS [tab] TURN
+	 * For shutting down, once the main loop has stopped.
+	 */
+	public void save(String fileName) {
+		File file = new File(fileName);
+		File temp = new File(fileName + ".tmp");
+		long now = System.currentTimeMillis();
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(temp))) {
+			for (Clock clock : clocks.values()) {
+				bw.write(clock.white + "\t" + clock.black + "\t" + clock.left(false, now) + "\t"
+						+ clock.left(true, now) + "\t" + (clock.turn ? 1 : 0) + CRLF);
+			}
+		} catch (IOException e) {
+			Log.error("saving clocks failed", "file", file, "error", e);
+			return;
+		}
+		file.delete();
+		if (!temp.renameTo(file)) {
+			Log.error("saving clocks failed, could not replace the file", "file", file);
+		}
+	}
+
+	//Starts the clocks save() wrote again, from now.  A clock whose game has ended since does nothing when it falls.
+	public void load(String fileName) {
+		File file = new File(fileName);
+		if (!enabled() || !file.exists()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] data = line.split("\t");
+				add(data[0], data[1], Long.parseLong(data[2]), Long.parseLong(data[3]), data[4].equals("1"), now);
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.error("reading clocks failed", "file", file, "error", e);
+		}
+		Log.info("clocks loaded", "running", clocks.size());
+	}
+
+	public void stop(Profile player) {
+		if (player.opp == null) {
+			return;
+		}
+		Clock clock = clocks.remove(whiteName(player));
+		if (clock != null) {
+			wheel.cancel(clock.flag);
+		}
+	}
+
+	//The clocks whose flag fell since the last call.  They are already stopped.
+	public List<Clock> expired() {
+		expired.clear();
+		wheel.advance(System.currentTimeMillis(), expired);
+		for (Clock clock : expired) {
+			if (clocks.get(clock.white) == clock) {
+				clocks.remove(clock.white);
+			}
+		}
+		return expired;
+	}
+
+	public int running() {
+		return clocks.size();
+	}
+
+	private static void send(Profile player, String message) {
+		player.send(message);
+		player.oppSend(message);
+	}
+}
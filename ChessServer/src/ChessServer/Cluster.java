@@ -0,0 +1,269 @@
+/*
+ * Running several server processes as one, each owning a shard of the
+ * players.
+ *
+ * Start each node with -Dcluster=HOST:PORT,HOST:PORT,... (the bus address of
+ * every node, in the same order everywhere) and -Dnode=N (its own position
+ * in that list), plus the same -DclusterSecret=SECRET everywhere (see
+ * Bus), and put a Router in front so players always land on the node that
+ * owns their name, see HashRing.  Without -Dcluster the server is
+ * a cluster of one and none of this does anything.
+ *
+ * A game between players of two nodes is hosted by the node of the player
+ * who asked for it.  There the other player is a guest: a Profile that is
+ * never saved, whose client is a Peer that sends everything over the bus.
+ * Their own node marks them away and forwards their game commands to the
+ * host, and writes whatever the host sends them to their socket.  When the
+ * pair breaks up the host releases the guest, with the result if a game was
+ * played so their own node can rate it.  Bus messages, by TYPE:
+ *   invite   NAME REQUESTER [tab] RATING   host asks NAME's node to mark them away
+ *   invited  NAME RATING                   they are, here is their rating
+ *   refuse   NAME REASON                   they aren't, tell the requester why
+ *   cmd      NAME MESSAGE                  a command from NAME for the host
+ *   deliver  NAME TEXT                     from the host, for NAME's socket
+ *   resume   NAME                          NAME logged in again, resend their game
+ *   release  NAME [SCORE [tab] OPP [tab] OPP_RATING]   the pair is over
+ *
+ * Matchmaking, presence, the directory and the leaderboard stay per node.
+ * Games hosted for guests live only in memory, so a host that stops takes
+ * them with it (releasing the guests first if it stops cleanly).
+ */
+package ChessServer;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+public class Cluster {
+
+	private static final String CRLF = "\r\n";
+	//What an away player's node forwards to the host.
+	private static final Set<String> GAME_COMMANDS = new HashSet<>(Arrays.asList(
+			"accept", "decline", "cancel", "move", "chat", "resign"));
+
+	private final HashRing ring;
+	private final int self;
+	private final Bus bus; //Null in a cluster of one
+	private final HashMap<String, Peer> peers; //Guests hosted here, by name
+	private final HashMap<String, Integer> away; //Our players hosted elsewhere, and where
+
+	public Cluster() {
+		String list = System.getProperty("cluster");
+		peers = new HashMap<>();
+		away = new HashMap<>();
+		if (list == null || list.isEmpty()) {
+			ring = new HashRing(1);
+			self = 0;
+			bus = null;
+			return;
+		}
+		ArrayList<InetSocketAddress> nodes = new ArrayList<>();
+		for (String node : list.split(",")) {
+			int colon = node.lastIndexOf(':');
+			nodes.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+		}
+		ring = new HashRing(nodes.size());
+		self = Integer.getInteger("node", 0);
+		bus = new Bus(nodes, self);
+	}
+
+	public boolean enabled() {
+		return bus != null;
+	}
+
+	public void start() {
+		if (bus != null) {
+			Thread thread = new Thread(bus, "bus");
+			thread.setDaemon(true);
+			thread.start();
+			Log.info("cluster node started", "node", self, "nodes", ring.nodes());
+		}
+	}
+
+	//Whether this node keeps the player's profile.
+	public boolean owns(String name) {
+		return ring.owner(name) == self;
+	}
+
+	public boolean away(String name) {
+		return away.containsKey(name);
+	}
+
+	public int guests() {
+		return peers.size();
+	}
+
+	//The guest with this name, if one is here.
+	public Profile find(String name) {
+		Peer peer = peers.get(name);
+		return peer == null ? null : peer.id;
+	}
+
+	//The guest with this name, made up if they aren't here yet.  The main loop reads their commands from clients.
+	public Profile guest(String name, List<Client> clients) {
+		Peer peer = peers.get(name);
+		if (peer == null) {
+			peer = new Peer(bus, ring.owner(name), name);
+			Profile.guest(name, Ratings.DEFAULT).connect(peer);
+			peers.put(name, peer);
+			clients.add(peer);
+			Metrics.connections.incrementAndGet();
+		}
+		return peer.id;
+	}
+
+	//Asks the guest's node to hold them for this request.  Until it answers the request stands.
+	public void invite(Profile requester, Profile guest) {
+		bus.send(ring.owner(guest.name), "invite", guest.name, requester.name + "\t" + requester.rating);
+	}
+
+	//Remembers how a guest's game went, for their node to rate once the pair is released.
+	public void finished(Profile white, Profile black, double score) {
+		result(white, black, score);
+		result(black, white, 1 - score);
+	}
+
+	private void result(Profile player, Profile opp, double score) {
+		Peer peer = player.guest ? peers.get(player.name) : null;
+		if (peer != null) {
+			peer.result = score + "\t" + opp.name + "\t" + opp.rating;
+		}
+	}
+
+	/*
+	 * Handles a command from one of our players whose game is on another
+	 * node: game commands go to the host, and new requests are turned down.
+	 * False if the command is for us after all.
+	 */
+	public boolean intercept(Client sender, String type, String message) {
+		if (sender.id == null || !away.containsKey(sender.id.name)) {
+			return false;
+		}
+		if (GAME_COMMANDS.contains(type)) {
+			bus.send(away.get(sender.id.name), "cmd", sender.id.name, message);
+		} else if (type.equals("request") || type.equals("seek")) {
+			sender.send("svrmsg You are already involved in a request." + CRLF);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	//For a player who just logged in.  False unless their game is elsewhere, in which case the host resends it.
+	public boolean resume(Profile player) {
+		Integer host = away.get(player.name);
+		if (host == null) {
+			return false;
+		}
+		bus.send(host, "resume", player.name, "");
+		return true;
+	}
+
+	//Handles what came in over the bus, then releases guests who aren't paired any more.  Once per main loop pass.
+	public void poll(ProfileCache profiles, Ratings ratings, Matchmaker matchmaker) {
+		if (bus == null) {
+			return;
+		}
+		while (bus.check()) {
+			String[] message = bus.next();
+			if (message.length < 4) {
+				continue;
+			}
+			int from = Integer.parseInt(message[0]);
+			String name = message[2];
+			String payload = message[3];
+			Peer peer = peers.get(name);
+			if (peer != null && peer.node != from) {
+				peer = null;
+			}
+			switch (message[1]) {
+				case "invite":
+					Profile player = profiles.get(name);
+					if (player == null) {
+						bus.send(from, "refuse", name, "Player not found");
+					} else if (player.opp != null || away.containsKey(name)) {
+						bus.send(from, "refuse", name, "This player is already paired.");
+					} else {
+						away.put(name, from);
+						matchmaker.cancel(name);
+						bus.send(from, "invited", name, Integer.toString(ratings.rating(name)));
+						player.send("gamereq " + payload.split("\t")[0] + CRLF);
+					}
+					break;
+
+				case "invited":
+					if (peer != null) {
+						peer.id.rating = Integer.parseInt(payload);
+					}
+					break;
+
+				case "refuse":
+					if (peer != null) {
+						Profile requester = peer.id.opp;
+						if (peer.id.unpair() && requester != null) {
+							requester.send("svrmsg " + payload + CRLF);
+						}
+					}
+					break;
+
+				case "cmd":
+				case "resume":
+					if (peer == null) { //We don't know about their game, so they shouldn't be away
+						bus.send(from, "release", name, "");
+					} else if (message[1].equals("cmd")) {
+						peer.received(payload);
+					} else {
+						ChessServer.resume(peer.id);
+					}
+					break;
+
+				case "deliver":
+					Profile recipient = profiles.peek(name);
+					if (recipient != null) {
+						recipient.send(payload);
+					}
+					break;
+
+				case "release":
+					Integer host = away.get(name);
+					if (host != null && host == from) {
+						away.remove(name);
+						Profile released = profiles.get(name);
+						if (!payload.isEmpty() && released != null) {
+							String[] result = payload.split("\t");
+							ratings.record(released, Profile.guest(result[1], Integer.parseInt(result[2])),
+									Double.parseDouble(result[0]));
+							Replication.record("rate", name, result[1], result[2], result[0]);
+						}
+					}
+					break;
+
+				default:
+					Log.warn("unknown bus message", "type", message[1], "from", from);
+			}
+		}
+		for (Iterator<Peer> it = peers.values().iterator(); it.hasNext();) {
+			Peer peer = it.next();
+			if (peer.id.opp == null) {
+				it.remove();
+				release(peer);
+			}
+		}
+	}
+
+	private void release(Peer peer) {
+		peer.close();
+		bus.send(peer.node, "release", peer.name, peer.result == null ? "" : peer.result);
+	}
+
+	//Releases every guest, so their nodes don't keep them away, and stops the bus.
+	public void close() {
+		if (bus == null) {
+			return;
+		}
+		for (Peer peer : peers.values()) {
+			release(peer);
+		}
+		peers.clear();
+		bus.close();
+	}
+}
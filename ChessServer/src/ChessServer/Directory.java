@@ -0,0 +1,124 @@
+/*
+ * Every registered name in a sorted array, with one bit per name for whether
+ * they are online, so clients can page through the players or search by
+ * prefix without the server sending everyone.
+ *
+ * A page goes out as
+ *   directory OFFSET TOTAL [tab] +name [tab] -name ...
+ * where + is online, - is offline, OFFSET is where the page starts among
+ * the TOTAL names matching the prefix.
+ */
+package ChessServer;
+
+import java.util.*;
+
+public class Directory {
+
+	private static final String CRLF = "\r\n";
+	public static final int PAGE_SIZE = 50;
+	private String[] names;
+	private long[] online; //Bit i is set if names[i] is online
+	private int size;
+
+	public Directory(Collection<String> all) {
+		names = all.toArray(new String[Math.max(16, all.size())]);
+		size = all.size();
+		Arrays.sort(names, 0, size);
+		online = new long[names.length / 64 + 1];
+	}
+
+	private Directory(String[] names, long[] online, int size) {
+		this.names = names;
+		this.online = online;
+		this.size = size;
+	}
+
+	//A copy that never changes, for reading on other threads while this one does.
+	public Directory copy() {
+		return new Directory(Arrays.copyOf(names, size), Arrays.copyOf(online, size / 64 + 1), size);
+	}
+
+	//Index range [from, to) of the names starting with prefix.
+	public int[] range(String prefix) {
+		int from = find(prefix);
+		from = from < 0 ? -from - 1 : from;
+		int to = find(prefix + Character.MAX_VALUE);
+		to = to < 0 ? -to - 1 : to;
+		return new int[]{from, to};
+	}
+
+	public String name(int i) {
+		return names[i];
+	}
+
+	public boolean isOnline(int i) {
+		return (online[i / 64] & (1L << (i % 64))) != 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	//Index of the name, or -(insertion point) - 1 like Arrays.binarySearch.
+	private int find(String name) {
+		return Arrays.binarySearch(names, 0, size, name);
+	}
+
+	public void add(String name) {
+		int i = find(name);
+		if (i >= 0) {
+			return;
+		}
+		i = -i - 1;
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			online = Arrays.copyOf(online, names.length / 64 + 1);
+		}
+		System.arraycopy(names, i, names, i + 1, size - i);
+		names[i] = name;
+		size++;
+		//Shift every bit from i up by one, word by word, carrying the top bit.
+		int word = i / 64;
+		long carry = online[word] >>> 63;
+		long low = online[word] & ((1L << (i % 64)) - 1);
+		long high = online[word] & ~((1L << (i % 64)) - 1);
+		online[word] = low | (high << 1);
+		for (int w = word + 1; w <= (size - 1) / 64; w++) {
+			long next = online[w] >>> 63;
+			online[w] = (online[w] << 1) | carry;
+			carry = next;
+		}
+	}
+
+	public void setOnline(String name, boolean on) {
+		int i = find(name);
+		if (i < 0) {
+			return;
+		}
+		if (on) {
+			online[i / 64] |= 1L << (i % 64);
+		} else {
+			online[i / 64] &= ~(1L << (i % 64));
+		}
+	}
+
+	public boolean isOnline(String name) {
+		int i = find(name);
+		return i >= 0 && (online[i / 64] & (1L << (i % 64))) != 0;
+	}
+
+	//The "directory" message for up to PAGE_SIZE names starting with prefix, from offset on.
+	public String page(String prefix, int offset) {
+		int from = find(prefix);
+		from = from < 0 ? -from - 1 : from;
+		int to = find(prefix + Character.MAX_VALUE);
+		to = to < 0 ? -to - 1 : to;
+		offset = Math.max(0, offset);
+		StringBuilder sb = new StringBuilder(32 + PAGE_SIZE * 12);
+		sb.append("directory ").append(offset).append(' ').append(to - from);
+		for (int i = from + offset; i < to && i < from + offset + PAGE_SIZE; i++) {
+			sb.append('\t').append((online[i / 64] & (1L << (i % 64))) != 0 ? '+' : '-').append(names[i]);
+		}
+		return sb.append(CRLF).toString();
+	}
+}
@@ -0,0 +1,10 @@
+// Scores a position for bots and analysis.
+package ChessServer;
+
+import chesscore.Game;
+
+public interface Evaluator {
+
+	//Centipawns from white's point of view, so positive is good for white.
+	int evaluate(Game game);
+}
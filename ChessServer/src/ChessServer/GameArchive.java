@@ -0,0 +1,719 @@
+/*
+ * Keeps every finished game in a directory of immutable segment files.
+ *
+ * New games collect in memory and are written out as a segment once there
+ * are enough of them.  Each segment has two files:
+ *   seg-N.dat  the games: id, names, result, start state if not the usual
+ *              one, and the moves packed 16 bits each like Game's history
+ *   seg-N.idx  every (position hash, game id) pair sorted by hash, then
+ *              every (game id, offset into .dat) pair sorted by id, then
+ *              the numbers of the segments this one replaces, if a merge
+ * The .idx file is written last, so a segment without one was never
+ * finished and is thrown away.  Lookups binary search the memory-mapped
+ * index of each segment.
+ *
+ * A background thread merges MERGE_AT neighbouring segments of about the
+ * same size into one, so each game is copied about once per factor of
+ * MERGE_AT the archive grows, not on every merge.  Segments stop growing
+ * at MAX_POSITIONS, which keeps an index in one mapping.  The merged
+ * segment's index names the segments it replaces, and finishing it is the
+ * moment the merge happens: on startup, replaced segments still on disk
+ * are deleted instead of loaded twice.
+ */
+package ChessServer;
+
+import chesscore.Game;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class GameArchive implements Closeable {
+
+	private static final int MAGIC = 0x43484741; //"CHGA"
+	private static final int SEGMENT_GAMES = 1000; //Games in memory before they are written out
+	private static final int MERGE_AT = 8; //Segments of a size before they are merged
+	private static final long MAX_POSITIONS = 1 << 25; //Position pairs in a merged segment, so an index stays under 1 GB
+	public static final String[] RESULTS = {"1-0", "0-1", "1/2-1/2", "*"};
+	private static final String START = new Game().gameState();
+
+	//One archived game, small enough to keep thousands of in memory.
+	public static class Entry {
+
+		public final long id;
+		public final String white;
+		public final String black;
+		public final int result; //Index into RESULTS
+		public final String startState;
+		public final short[] moves;
+
+		public Entry(long id, String white, String black, int result, String startState, short[] moves) {
+			this.id = id;
+			this.white = white;
+			this.black = black;
+			this.result = result;
+			this.startState = startState;
+			this.moves = moves;
+		}
+
+		//Replays the game from the start.
+		public Game toGame() {
+			Game game = new Game(startState);
+			for (short move : moves) {
+				game.move(move);
+			}
+			return game;
+		}
+
+		public PgnGame toPgn() {
+			PgnGame pgn = new PgnGame();
+			pgn.tags.put("Event", "Archived game " + id);
+			pgn.tags.put("White", white);
+			pgn.tags.put("Black", black);
+			pgn.game = toGame();
+			pgn.result = RESULTS[result];
+			return pgn;
+		}
+
+		//Hashes of every position in the game, without repeats.
+		long[] positions() {
+			Game game = new Game(startState);
+			long[] hashes = new long[moves.length + 1];
+			hashes[0] = game.hash();
+			for (int i = 0; i < moves.length; i++) {
+				game.move(moves[i]);
+				hashes[i + 1] = game.hash();
+			}
+			Arrays.sort(hashes);
+			int n = 0;
+			for (int i = 0; i < hashes.length; i++) {
+				if (i == 0 || hashes[i] != hashes[i - 1]) {
+					hashes[n++] = hashes[i];
+				}
+			}
+			return Arrays.copyOf(hashes, n);
+		}
+	}
+
+	//A finished segment, memory-mapped for lookups.
+	static class Segment {
+
+		final long number;
+		final File data;
+		final File index;
+		final int positionCount;
+		final int gameCount;
+		final LongBuffer positions; //hash, id, hash, id...
+		final LongBuffer games; //id, offset, id, offset...
+		final long[] replaces; //Segments merged into this one
+
+		Segment(File dir, long number) throws IOException {
+			this.number = number;
+			data = new File(dir, "seg-" + number + ".dat");
+			index = new File(dir, "seg-" + number + ".idx");
+			try (RandomAccessFile raf = new RandomAccessFile(index, "r")) {
+				MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (map.getInt() != MAGIC) {
+					throw new IOException("Not an archive index: " + index);
+				}
+				positionCount = map.getInt();
+				gameCount = map.getInt();
+				map.getInt(); //Padding so the longs line up
+				long end = 16 + ((long) positionCount + gameCount) * 16;
+				if (positionCount < 0 || gameCount < 0 || end > raf.length()) {
+					throw new IOException("Archive index is cut short: " + index);
+				}
+				ByteBuffer rest = map.slice();
+				rest.limit(positionCount * 16);
+				positions = rest.asLongBuffer();
+				rest = map.slice();
+				rest.position(positionCount * 16);
+				rest.limit((positionCount + gameCount) * 16);
+				games = rest.slice().asLongBuffer();
+				//Segments that were never merged, and ones from before merges were recorded, end here
+				replaces = new long[end == raf.length() ? 0 : (int) map.getLong((int) end)];
+				for (int i = 0; i < replaces.length; i++) {
+					replaces[i] = map.getLong((int) end + 8 + i * 8);
+				}
+			}
+		}
+
+		//0 for a segment written straight from memory, 1 once MERGE_AT of those are merged, and so on.
+		int level() {
+			int level = 0;
+			for (long size = (long) SEGMENT_GAMES * MERGE_AT; gameCount >= size; size *= MERGE_AT) {
+				level++;
+			}
+			return level;
+		}
+
+		//Adds the ids of every game in this segment that reached the position.
+		void find(long hash, List<Long> ids) {
+			int low = 0;
+			int high = positionCount;
+			while (low < high) { //First entry with this hash
+				int mid = (low + high) >>> 1;
+				if (positions.get(mid * 2) < hash) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			for (int i = low; i < positionCount && positions.get(i * 2) == hash; i++) {
+				ids.add(positions.get(i * 2 + 1));
+			}
+		}
+
+		//Where the game starts in the .dat file, or -1 if it isn't here.
+		long offset(long id) {
+			int low = 0;
+			int high = gameCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long midId = games.get(mid * 2);
+				if (midId < id) {
+					low = mid + 1;
+				} else if (midId > id) {
+					high = mid - 1;
+				} else {
+					return games.get(mid * 2 + 1);
+				}
+			}
+			return -1;
+		}
+
+		//Reads games from..to-1 of this segment in one pass over the file.
+		List<Entry> read(int from, int to) throws IOException {
+			ArrayList<Entry> entries = new ArrayList<>(to - from);
+			if (from >= to) {
+				return entries;
+			}
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(data), 1 << 16))) {
+				long offset = games.get(from * 2 + 1);
+				in.skipNBytes(offset); //EOFException if the file is cut short, where skip() would just stop
+				for (int i = from; i < to; i++) {
+					entries.add(readEntry(in));
+				}
+			}
+			return entries;
+		}
+
+		long maxId() {
+			return gameCount == 0 ? 0 : games.get((gameCount - 1) * 2);
+		}
+	}
+
+	private final File dir;
+	private final AtomicLong nextId;
+	//Oldest first.  Never changed in place, only replaced, so readers don't need the lock.
+	private volatile List<Segment> segments;
+	private ArrayList<Entry> memory; //Not written out yet
+	private ArrayList<Entry> flushing; //Being written out right now
+	private long nextSegment;
+	private final ExecutorService background;
+	private volatile boolean closed; //Games added after close() are written out on the caller's thread
+
+	public GameArchive(String dirName) {
+		dir = new File(dirName);
+		dir.mkdirs();
+		memory = new ArrayList<>();
+		flushing = new ArrayList<>();
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "archive");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		long maxId = 0;
+		ArrayList<Segment> loaded = new ArrayList<>();
+		TreeMap<Long, File> found = new TreeMap<>();
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.startsWith("seg-") && (name.endsWith(".dat") || name.endsWith(".idx"))) {
+				found.put(Long.parseLong(name.substring(4, name.length() - 4)), file);
+			} else if (name.endsWith(".tmp")) {
+				file.delete();
+			}
+		}
+		HashSet<Long> replaced = new HashSet<>();
+		for (Long number : found.keySet()) {
+			nextSegment = Math.max(nextSegment, number + 1);
+			if (!new File(dir, "seg-" + number + ".idx").exists()) {
+				new File(dir, "seg-" + number + ".dat").delete(); //Never finished
+				continue;
+			}
+			try {
+				Segment segment = new Segment(dir, number);
+				loaded.add(segment);
+				for (long old : segment.replaces) {
+					replaced.add(old);
+				}
+			} catch (IOException | RuntimeException e) {
+				Log.error("reading archive segment failed", "segment", number, "error", e);
+			}
+		}
+		//A merge that finished before the old segments were deleted
+		for (Iterator<Segment> it = loaded.iterator(); it.hasNext();) {
+			Segment segment = it.next();
+			if (replaced.contains(segment.number)) {
+				it.remove();
+				segment.data.delete();
+				segment.index.delete();
+				Log.info("deleted merged archive segment", "segment", segment.number);
+			} else {
+				maxId = Math.max(maxId, segment.maxId());
+			}
+		}
+		segments = Collections.unmodifiableList(loaded);
+		nextId = new AtomicLong(maxId + 1);
+	}
+
+	/*
+	 * Archives a finished game and returns its id.  The game is written out
+	 * with the next segment, on the background thread.
+	 */
+	public long add(String white, String black, String result, Game game) {
+		int code = Arrays.asList(RESULTS).indexOf(result);
+		String startState = game.replay(0).gameState();
+		short[] moves = game.history();
+		Entry entry;
+		synchronized (this) { //Ids go out in the same order games are written
+			entry = new Entry(nextId.getAndIncrement(), white, black, code == -1 ? 3 : code, startState, moves);
+			memory.add(entry);
+			if (memory.size() >= SEGMENT_GAMES || closed) {
+				flushLater();
+			}
+		}
+		return entry.id;
+	}
+
+	public long add(PgnGame pgn) {
+		String white = pgn.tag("White");
+		String black = pgn.tag("Black");
+		return add(white == null ? "?" : white, black == null ? "?" : black, pgn.result, pgn.game);
+	}
+
+	public int segmentCount() {
+		return segments.size();
+	}
+
+	//Ids of every archived game that reached this position, oldest first.
+	public List<Long> find(Game position) {
+		long hash = position.hash();
+		ArrayList<Long> ids = new ArrayList<>();
+		for (Segment segment : segments) {
+			segment.find(hash, ids);
+		}
+		for (Entry entry : pending()) {
+			if (Arrays.binarySearch(entry.positions(), hash) >= 0) {
+				ids.add(entry.id);
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	//The archived game with this id, or null.
+	public Entry get(long id) {
+		for (Entry entry : pending()) {
+			if (entry.id == id) {
+				return entry;
+			}
+		}
+		for (Segment segment : segments) {
+			long offset = segment.offset(id);
+			if (offset != -1) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.data)))) {
+					in.skipNBytes(offset);
+					return readEntry(in);
+				} catch (IOException e) {
+					Log.error("reading archive failed", "error", e);
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	//The segments as they are right now, for jobs that read the whole archive.
+	List<Segment> snapshot() {
+		return segments;
+	}
+
+	synchronized ArrayList<Entry> pending() {
+		ArrayList<Entry> entries = new ArrayList<>(flushing);
+		entries.addAll(memory);
+		return entries;
+	}
+
+	//Writes out whatever is in memory and waits for background work to finish.
+	@Override
+	public void close() {
+		synchronized (this) {
+			flushLater();
+			closed = true;
+		}
+		background.shutdown();
+		try {
+			background.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//Call while holding the lock.  Once closed there is no background thread, so this writes the segment itself.
+	private void flushLater() {
+		if (memory.isEmpty()) {
+			return;
+		}
+		final ArrayList<Entry> batch = memory;
+		memory = new ArrayList<>();
+		flushing.addAll(batch);
+		final long number = nextSegment++;
+		Runnable flush = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Segment segment = writeSegment(number, batch);
+					synchronized (GameArchive.this) {
+						ArrayList<Segment> next = new ArrayList<>(segments);
+						next.add(segment);
+						segments = Collections.unmodifiableList(next);
+					}
+				} catch (IOException | RuntimeException e) {
+					Log.error("writing archive segment failed", "error", e);
+				}
+				synchronized (GameArchive.this) {
+					flushing.removeAll(batch);
+				}
+				List<Segment> old;
+				while (!closed && (old = mergeable(segments)) != null && merge(old)) { //Left for the next start once closed
+				}
+			}
+		};
+		if (closed) {
+			flush.run();
+		} else {
+			background.submit(flush);
+		}
+	}
+
+	private Segment writeSegment(long number, List<Entry> entries) throws IOException {
+		File data = new File(dir, "seg-" + number + ".dat");
+		long[] offsets = new long[entries.size()];
+		try (CountingStream counter = new CountingStream(new FileOutputStream(data));
+				DataOutputStream out = new DataOutputStream(counter)) {
+			out.writeInt(MAGIC);
+			for (int i = 0; i < entries.size(); i++) {
+				out.flush();
+				offsets[i] = counter.count;
+				writeEntry(out, entries.get(i));
+			}
+		}
+		int positionCount = 0;
+		long[][] hashes = new long[entries.size()][];
+		for (int i = 0; i < entries.size(); i++) {
+			hashes[i] = entries.get(i).positions();
+			positionCount += hashes[i].length;
+		}
+		long[] pairs = new long[positionCount * 2];
+		Integer[] order = new Integer[positionCount];
+		int k = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			for (long hash : hashes[i]) {
+				pairs[k * 2] = hash;
+				pairs[k * 2 + 1] = entries.get(i).id;
+				order[k] = k;
+				k++;
+			}
+		}
+		final long[] p = pairs;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Long.compare(p[a * 2], p[b * 2]);
+				return c != 0 ? c : Long.compare(p[a * 2 + 1], p[b * 2 + 1]);
+			}
+		});
+		long[] games = new long[entries.size() * 2];
+		for (int i = 0; i < entries.size(); i++) { //Ids are handed out in order, so these are sorted
+			games[i * 2] = entries.get(i).id;
+			games[i * 2 + 1] = offsets[i];
+		}
+		writeIndex(number, new SortedPairs(order, pairs), positionCount, games, new long[0]);
+		return new Segment(dir, number);
+	}
+
+	//Position pairs in sorted order, either from an array or merged from several segments.
+	private interface PairSource {
+
+		boolean next(long[] pair);
+	}
+
+	private static class SortedPairs implements PairSource {
+
+		private final Integer[] order;
+		private final long[] pairs;
+		private int i;
+
+		SortedPairs(Integer[] order, long[] pairs) {
+			this.order = order;
+			this.pairs = pairs;
+		}
+
+		@Override
+		public boolean next(long[] pair) {
+			if (i == order.length) {
+				return false;
+			}
+			pair[0] = pairs[order[i] * 2];
+			pair[1] = pairs[order[i] * 2 + 1];
+			i++;
+			return true;
+		}
+	}
+
+	private void writeIndex(long number, PairSource pairs, int positionCount, long[] games, long[] replaces)
+			throws IOException {
+		File temp = new File(dir, "seg-" + number + ".idx.tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(positionCount);
+			out.writeInt(games.length / 2);
+			out.writeInt(0);
+			long[] pair = new long[2];
+			while (pairs.next(pair)) {
+				out.writeLong(pair[0]);
+				out.writeLong(pair[1]);
+			}
+			for (long value : games) {
+				out.writeLong(value);
+			}
+			if (replaces.length > 0) {
+				out.writeLong(replaces.length);
+				for (long value : replaces) {
+					out.writeLong(value);
+				}
+			}
+		}
+		if (!temp.renameTo(new File(dir, "seg-" + number + ".idx"))) {
+			throw new IOException("Could not finish " + temp);
+		}
+	}
+
+	/*
+	 * The first MERGE_AT neighbouring segments of the same level whose merge
+	 * stays under MAX_POSITIONS, or null.  Neighbours, so the merged games
+	 * are still in id order.
+	 */
+	static List<Segment> mergeable(List<Segment> segments) {
+		for (int start = 0; start + MERGE_AT <= segments.size(); start++) {
+			int level = segments.get(start).level();
+			long positions = 0;
+			boolean same = true;
+			for (int i = start; i < start + MERGE_AT; i++) {
+				same &= segments.get(i).level() == level;
+				positions += segments.get(i).positionCount;
+			}
+			if (same && positions <= MAX_POSITIONS) {
+				return new ArrayList<>(segments.subList(start, start + MERGE_AT));
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Merges neighbouring segments into one, in their place.  Game data is
+	 * copied as is, the position lists are merged in order and the game
+	 * offsets are shifted.  Only ever runs on the background thread.
+	 * Returns false if it failed.
+	 */
+	private boolean merge(final List<Segment> old) {
+		long number;
+		synchronized (this) {
+			number = nextSegment++;
+		}
+		File data = new File(dir, "seg-" + number + ".dat");
+		try {
+			int gameCount = 0;
+			int positionCount = 0;
+			for (Segment segment : old) {
+				gameCount += segment.gameCount;
+				positionCount += segment.positionCount;
+			}
+			long[] games = new long[gameCount * 2];
+			long[] replaces = new long[old.size()];
+			for (int i = 0; i < old.size(); i++) {
+				replaces[i] = old.get(i).number;
+			}
+			try (CountingStream out = new CountingStream(new FileOutputStream(data))) {
+				new DataOutputStream(out).writeInt(MAGIC);
+				int g = 0;
+				byte[] buffer = new byte[1 << 16];
+				for (Segment segment : old) {
+					long shift = out.count - 4; //Both files start with the magic number
+					for (int i = 0; i < segment.gameCount; i++) {
+						games[g * 2] = segment.games.get(i * 2);
+						games[g * 2 + 1] = segment.games.get(i * 2 + 1) + shift;
+						g++;
+					}
+					try (InputStream in = new FileInputStream(segment.data)) {
+						in.skipNBytes(4);
+						int n;
+						while ((n = in.read(buffer)) > 0) {
+							out.write(buffer, 0, n);
+						}
+					}
+				}
+			}
+			final int[] cursor = new int[old.size()];
+			writeIndex(number, new PairSource() {
+				@Override
+				public boolean next(long[] pair) {
+					int best = -1;
+					for (int s = 0; s < cursor.length; s++) {
+						Segment segment = old.get(s);
+						if (cursor[s] < segment.positionCount && (best == -1
+								|| segment.positions.get(cursor[s] * 2) < old.get(best).positions.get(cursor[best] * 2))) {
+							best = s;
+						}
+					}
+					if (best == -1) {
+						return false;
+					}
+					pair[0] = old.get(best).positions.get(cursor[best] * 2);
+					pair[1] = old.get(best).positions.get(cursor[best] * 2 + 1);
+					cursor[best]++;
+					return true;
+				}
+			}, positionCount, games, replaces);
+			Segment merged = new Segment(dir, number);
+			//Readers see either the old segments or the new one, never both.
+			synchronized (this) {
+				ArrayList<Segment> next = new ArrayList<>(segments);
+				int at = next.indexOf(old.get(0));
+				next.removeAll(old);
+				next.add(at, merged);
+				segments = Collections.unmodifiableList(next);
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.error("merging archive failed", "error", e);
+			data.delete();
+			new File(dir, "seg-" + number + ".idx").delete();
+			return false;
+		}
+		for (Segment segment : old) {
+			segment.data.delete();
+			segment.index.delete();
+		}
+		return true;
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		out.writeLong(entry.id);
+		out.writeUTF(entry.white);
+		out.writeUTF(entry.black);
+		boolean setUp = !entry.startState.equals(START);
+		out.writeByte(entry.result | (setUp ? 4 : 0));
+		if (setUp) {
+			out.writeBytes(entry.startState);
+		}
+		out.writeShort(entry.moves.length);
+		for (short move : entry.moves) {
+			out.writeShort(move);
+		}
+	}
+
+	private static Entry readEntry(DataInputStream in) throws IOException {
+		long id = in.readLong();
+		String white = in.readUTF();
+		String black = in.readUTF();
+		int flags = in.readByte();
+		String startState = START;
+		if ((flags & 4) != 0) {
+			byte[] state = new byte[70];
+			in.readFully(state);
+			startState = new String(state, "ISO-8859-1");
+		}
+		short[] moves = new short[in.readUnsignedShort()];
+		for (int i = 0; i < moves.length; i++) {
+			moves[i] = in.readShort();
+		}
+		return new Entry(id, white, black, flags & 3, startState, moves);
+	}
+
+	private static class CountingStream extends FilterOutputStream {
+
+		long count;
+
+		CountingStream(OutputStream out) {
+			super(new BufferedOutputStream(out, 1 << 16));
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	//Usage: GameArchive dir import file.pgn [threads] | dir find FEN | dir get ID
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: GameArchive dir import file.pgn [threads]\n"
+					+ "       GameArchive dir find FEN\n"
+					+ "       GameArchive dir get ID");
+			return;
+		}
+		final GameArchive archive = new GameArchive(args[0]);
+		switch (args[1]) {
+			case "import":
+				int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+				PgnImport pgnImport = new PgnImport();
+				long start = System.currentTimeMillis();
+				pgnImport.importFile(new File(args[2]), threads, new PgnImport.Handler() {
+					@Override
+					public void game(PgnGame pgn) {
+						if (pgn.error == null) {
+							archive.add(pgn);
+						}
+					}
+				});
+				archive.close();
+				System.out.println("Archived " + (pgnImport.games.get() - pgnImport.errors.get()) + " games in "
+						+ (System.currentTimeMillis() - start) + " ms, " + archive.segmentCount() + " segments");
+				break;
+			case "find":
+				StringBuilder fen = new StringBuilder();
+				for (int i = 2; i < args.length; i++) {
+					fen.append(args[i]).append(' ');
+				}
+				long time = System.nanoTime();
+				List<Long> ids = archive.find(Notation.fromFen(fen.toString()));
+				System.out.println(ids.size() + " games in " + (System.nanoTime() - time) / 1000 + " us: " + ids);
+				break;
+			case "get":
+				Entry entry = archive.get(Long.parseLong(args[2]));
+				if (entry == null) {
+					System.out.println("No such game.");
+				} else {
+					StringWriter sw = new StringWriter();
+					new PgnWriter(sw).write(entry.toPgn());
+					System.out.print(sw);
+				}
+				break;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Checks that whoever connected knows a shared secret, without sending it:
+ * the side that accepted the connection sends a random challenge, and the
+ * side that connected answers with an HMAC-SHA256 of it under the secret.
+ * Replication and the cluster bus use it, since their ports take changes to
+ * any player from whoever gets through.  With no secret set nothing is
+ * exchanged, and only where the port listens keeps strangers out.
+ */
+package ChessServer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+final class Handshake {
+
+	private static final int CHALLENGE = 16; //Bytes
+	private static final int TIMEOUT = 2000; //Milliseconds to answer
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private Handshake() {
+	}
+
+	//The secret in a system property, or null if it isn't set.
+	static byte[] secret(String property) {
+		String secret = System.getProperty(property);
+		return secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	//For the side that accepted.  False if the other side doesn't know the secret, or took too long to show it.
+	static boolean challenge(Socket socket, byte[] secret) {
+		if (secret == null) {
+			return true;
+		}
+		byte[] challenge = new byte[CHALLENGE];
+		RANDOM.nextBytes(challenge);
+		try {
+			socket.setSoTimeout(TIMEOUT);
+			socket.getOutputStream().write(challenge);
+			socket.getOutputStream().flush();
+			byte[] answer = new byte[32];
+			new DataInputStream(socket.getInputStream()).readFully(answer); //Not buffered, so nothing else is read
+			socket.setSoTimeout(0);
+			return MessageDigest.isEqual(answer, sign(secret, challenge));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	//For the side that connected.
+	static void answer(Socket socket, byte[] secret) throws IOException {
+		if (secret == null) {
+			return;
+		}
+		byte[] challenge = new byte[CHALLENGE];
+		socket.setSoTimeout(TIMEOUT);
+		new DataInputStream(socket.getInputStream()).readFully(challenge);
+		socket.setSoTimeout(0);
+		socket.getOutputStream().write(sign(secret, challenge));
+		socket.getOutputStream().flush();
+	}
+
+	private static byte[] sign(byte[] secret, byte[] challenge) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			return mac.doFinal(challenge);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 is missing", e); //Every JRE has it
+		}
+	}
+}
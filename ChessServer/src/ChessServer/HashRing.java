@@ -0,0 +1,71 @@
+/*
+ * Consistent hashing of player names onto the nodes of a cluster.
+ *
+ * Each node puts POINTS points on a ring of ints, hashed from its number,
+ * and a name belongs to the node with the first point at or after the
+ * name's hash.  With many points per node the names spread evenly, and
+ * adding a node only moves the names that land just before its points,
+ * about 1/n of them, instead of nearly all of them like hash % n would.
+ *
+ * Nodes are known by their position in the list they were started with,
+ * so the router and every node build the same ring from the same count.
+ */
+package ChessServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class HashRing {
+
+	private static final int POINTS = 160; //Per node
+
+	private final int[] points; //Sorted hashes
+	private final int[] owners; //Node owning each point
+	private final int nodes;
+
+	public HashRing(int nodes) {
+		this.nodes = nodes;
+		long[] ring = new long[nodes * POINTS]; //Hash in the high half, node in the low
+		for (int node = 0; node < nodes; node++) {
+			for (int i = 0; i < POINTS; i++) {
+				ring[node * POINTS + i] = ((long) hash("node-" + node + "-" + i) << 32) | node;
+			}
+		}
+		Arrays.sort(ring);
+		points = new int[ring.length];
+		owners = new int[ring.length];
+		for (int i = 0; i < ring.length; i++) {
+			points[i] = (int) (ring[i] >> 32);
+			owners[i] = (int) ring[i];
+		}
+	}
+
+	public int nodes() {
+		return nodes;
+	}
+
+	//The node a name belongs to.
+	public int owner(String name) {
+		if (nodes == 1) {
+			return 0;
+		}
+		int i = Arrays.binarySearch(points, hash(name));
+		i = i < 0 ? -i - 1 : i;
+		return owners[i == points.length ? 0 : i]; //Past the last point wraps around to the first
+	}
+
+	//FNV-1a over the UTF-8 bytes, then mixed so similar names land far apart.
+	static int hash(String key) {
+		int h = 0x811c9dc5;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
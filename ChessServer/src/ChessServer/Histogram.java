@@ -0,0 +1,92 @@
+/*
+ * A latency histogram in the style of HdrHistogram: buckets are linear up
+ * to 128 and then split every power of two into 64, so any value is off by
+ * at most about 1.5% and recording is one array increment with no locks.
+ * Values are whatever unit the caller uses, nanoseconds everywhere in the
+ * server, and reported in microseconds.
+ */
+package ChessServer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram {
+
+	private static final int SUB_BITS = 6;
+	private static final int SUB = 1 << SUB_BITS; //Buckets per power of two
+	private static final int BUCKETS = 2 * SUB + (63 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	private static int index(long value) {
+		if (value < 2 * SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; //value >>> shift is in [SUB, 2 * SUB)
+		return 2 * SUB + (shift - 1) * SUB + (int) (value >>> shift) - SUB;
+	}
+
+	//The highest value that lands in this bucket.
+	private static long highest(int index) {
+		if (index < 2 * SUB) {
+			return index;
+		}
+		int shift = (index - 2 * SUB) / SUB + 1;
+		long base = SUB + (index - 2 * SUB) % SUB;
+		return ((base + 1) << shift) - 1;
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long old;
+		while (value > (old = max.get()) && !max.compareAndSet(old, value)) {
+		}
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	//The value that fraction of recorded values are at or below, 0.5 for the median.
+	public long percentile(double fraction) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * fraction));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	//One line: count, mean and percentiles in microseconds, for values recorded in nanoseconds.
+	public String report() {
+		long total = count.get();
+		if (total == 0) {
+			return "none";
+		}
+		return total + " | mean " + micros(sum.get() / total)
+				+ " p50 " + micros(percentile(0.5))
+				+ " p90 " + micros(percentile(0.9))
+				+ " p99 " + micros(percentile(0.99))
+				+ " p99.9 " + micros(percentile(0.999))
+				+ " max " + micros(max.get()) + " us";
+	}
+
+	private static String micros(long nanos) {
+		return nanos >= 10000 ? String.valueOf(nanos / 1000) : String.format("%.1f", nanos / 1000.0);
+	}
+}
@@ -0,0 +1,424 @@
+/*
+ * Load test for a running server: opens lots of connections to it and has
+ * them play each other, speaking the same protocol as ChessClient.
+ *
+ * Bots are paired up in order.  Both register (or log in if the name is
+ * taken), the first one requests a game from the second, and they play
+ * random legal moves until someone is mated or the game gets too long and
+ * the side to move resigns, then go again.  Now and then a bot chats.
+ * Given an opening book, bots play from it while it has the position,
+ * without thinking, like a real bot would.  Given tablebases, bots play
+ * endgames in them perfectly, also without thinking.
+ *
+ * A move's round trip is from one bot sending it to its opponent getting
+ * it from the server; both are in this process so one clock times both.
+ * Every second it prints connections, moves per second and round trip
+ * percentiles, and at the end a summary, including where it saw the server
+ * saturate: the busiest second, and the first second whose p99 round trip
+ * was ten times that of the first seconds.  That is observed from the
+ * client side, so this process running short of CPU or stopping for GC
+ * looks the same as a slow server.  To tell them apart it also asks the
+ * server's admin port for stats every second (-admin PORT, by default 1730
+ * when the server is on this machine, since the admin port only listens on
+ * loopback, and 0 to not ask) and shows the server's inbound queue and p99
+ * dispatch time next to its own numbers.
+ *
+ * Usage: LoadGenerator [-host H] [-port P] [-admin PORT] [-clients N] [-rate N/s] [-seconds S]
+ *                      [-think MS] [-plies N] [-prefix NAME] [-book FILE] [-tablebases DIR]
+ */
+package ChessServer;
+
+import chesscore.Game;
+import chesscore.OpeningBook;
+import chesscore.Tablebase;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class LoadGenerator {
+
+	private static final String CRLF = "\r\n";
+	private static final double CHAT = 0.02; //Chance of a chat message before a move
+
+	private String host = "localhost";
+	private int port = 1729;
+	private int admin = -1; //The server's admin port, 0 for none and -1 for 1730 if it's local
+	private int clients = 1000;
+	private int rate = 0; //New connections per second, 0 for as fast as possible
+	private int seconds = 60;
+	private int think = 0; //Milliseconds before each move
+	private int plies = 120; //Resign after this many plies
+	private String prefix = "load";
+	private OpeningBook book; //null to play random moves from the start
+	private Tablebase tablebase; //null to play endgames randomly too
+
+	private final Histogram setup = new Histogram(); //Connect to logged in
+	private final Histogram roundTrip = new Histogram();
+	private final AtomicReference<Histogram> second = new AtomicReference<>(new Histogram());
+	private final AtomicLong connected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong moves = new AtomicLong();
+	private final AtomicLong bookMoves = new AtomicLong();
+	private final AtomicLong tablebaseMoves = new AtomicLong();
+	private final AtomicLong games = new AtomicLong();
+	private volatile boolean running = true;
+
+	//The two bots playing each other.
+	private static class Pair {
+
+		Bot requester;
+		Bot requested;
+		boolean requesterReady;
+		boolean requestedReady;
+		volatile long sentAt; //When the last move was sent, from System.nanoTime()
+	}
+
+	private class Bot implements Runnable {
+
+		final String name;
+		final Pair pair;
+		final Random random;
+		Socket socket;
+		OutputStream out;
+		Game game;
+		boolean color;
+		long started;
+
+		Bot(String name, Pair pair, long seed) {
+			this.name = name;
+			this.pair = pair;
+			random = new Random(seed);
+		}
+
+		synchronized void send(String message) throws IOException {
+			out.write((message + CRLF).getBytes()); //One write, so one packet
+		}
+
+		@Override
+		public void run() {
+			started = System.nanoTime();
+			try {
+				socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+				out = socket.getOutputStream();
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				String line;
+				while (running && (line = in.readLine()) != null) {
+					handle(line);
+				}
+			} catch (IOException e) {
+				if (running) {
+					failed.incrementAndGet();
+				}
+			} finally {
+				try {
+					if (socket != null) {
+						socket.close();
+					}
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		private void handle(String line) throws IOException {
+			int space = line.indexOf(' ');
+			String type = space == -1 ? line : line.substring(0, space);
+			String data = space == -1 ? "" : line.substring(space + 1);
+			switch (type) {
+				case "svrmsg":
+					if (data.startsWith("Please log in")) {
+						send("register " + name + "\tload");
+					} else if (data.startsWith("Username already exists")) {
+						send("login " + name + "\tload");
+					} else if (data.startsWith("Successfully")) {
+						setup.record(System.nanoTime() - started);
+						connected.incrementAndGet();
+						ready();
+					}
+					break;
+				case "gamereq":
+					send("accept " + data);
+					break;
+				case "init":
+					String[] parts = data.split("\t");
+					color = parts[0].equals("black");
+					game = parts.length > 1 ? new Game(parts[1]) : new Game();
+					play();
+					break;
+				case "move":
+					long trip = System.nanoTime() - pair.sentAt;
+					roundTrip.record(trip);
+					second.get().record(trip);
+					moves.incrementAndGet();
+					if (game != null) {
+						game.move(Game.encodeMove(data.charAt(0) - '0', data.charAt(1) - '0', data.charAt(2) - '0',
+								data.charAt(3) - '0', data.length() == 5 ? data.charAt(4) : '\0'));
+						play();
+					}
+					break;
+				case "gameover":
+					game = null;
+					if (this == pair.requester) {
+						games.incrementAndGet();
+						send("request " + pair.requested.name);
+					}
+					break;
+			}
+		}
+
+		//Once both bots of the pair are in, the requester asks for a game.
+		private void ready() throws IOException {
+			boolean both;
+			synchronized (pair) {
+				if (this == pair.requester) {
+					pair.requesterReady = true;
+				} else {
+					pair.requestedReady = true;
+				}
+				both = pair.requesterReady && pair.requestedReady;
+			}
+			if (both) {
+				pair.requester.send("request " + pair.requested.name);
+			}
+		}
+
+		private void play() throws IOException {
+			if (game == null || game.getTurn() != color) {
+				return;
+			}
+			short move = book == null ? OpeningBook.NONE : book.pick(game, random.nextInt());
+			if (move == OpeningBook.NONE && tablebase != null) {
+				move = tablebase.best(game);
+				if (move != Tablebase.NONE) {
+					tablebaseMoves.incrementAndGet();
+				}
+			} else if (move != OpeningBook.NONE) {
+				bookMoves.incrementAndGet();
+			}
+			short[] legal = null;
+			if (move == OpeningBook.NONE) {
+				legal = game.legalMoves();
+				if (legal.length == 0) {
+					return; //The server will say it's over
+				}
+			}
+			if (think > 0 && legal != null) {
+				try {
+					Thread.sleep(think);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			if (game.historyLength() >= plies) {
+				game = null;
+				send("resign");
+				return;
+			}
+			if (random.nextDouble() < CHAT) {
+				send("chat " + name + ": good luck");
+			}
+			if (legal != null) {
+				move = legal[random.nextInt(legal.length)];
+			}
+			game.move(move);
+			pair.sentAt = System.nanoTime();
+			send("move " + Game.moveString(move));
+		}
+	}
+
+	public void run() throws InterruptedException {
+		final long start = System.nanoTime();
+		ArrayList<Thread> threads = new ArrayList<>();
+		Thread reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				report(start);
+			}
+		}, "report");
+		reporter.setDaemon(true);
+		reporter.start();
+		for (int i = 0; i + 1 < clients && running; i += 2) {
+			Pair pair = new Pair();
+			pair.requester = new Bot(prefix + i, pair, i);
+			pair.requested = new Bot(prefix + (i + 1), pair, i + 1);
+			for (Bot bot : new Bot[]{pair.requester, pair.requested}) {
+				Thread thread = new Thread(null, bot, bot.name, 256 * 1024);
+				thread.setDaemon(true);
+				thread.start();
+				threads.add(thread);
+			}
+			if (rate > 0) {
+				long due = start + (i + 2) * 1000000000L / rate;
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+			}
+		}
+		long connectNanos = System.nanoTime() - start;
+		long left = start + seconds * 1000000000L - System.nanoTime();
+		if (left > 0) {
+			Thread.sleep(left / 1000000);
+		}
+		running = false;
+		reporter.interrupt();
+		reporter.join();
+		summary(System.nanoTime() - start, connectNanos);
+	}
+
+	private final ArrayList<long[]> history = new ArrayList<>(); //Per second: moves, p99 nanos, then the server's, see serverStats
+
+	/*
+	 * The server's inbound queue and the p99 of its dispatch time in
+	 * microseconds (since it started, which is all stats has), or null if
+	 * there is no admin port to ask or it didn't answer.
+	 */
+	private long[] serverStats() {
+		if (admin <= 0) {
+			return null;
+		}
+		long[] stats = {-1, -1};
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(host, admin), 500);
+			socket.setSoTimeout(500);
+			Writer out = new OutputStreamWriter(socket.getOutputStream());
+			out.write("stats\n");
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			String line;
+			while ((line = in.readLine()) != null && !line.equals(".")) {
+				if (line.startsWith("Inbound queue:")) {
+					stats[0] = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+				} else if (line.startsWith("dispatch ") && line.contains(" p99 ")) {
+					String p99 = line.substring(line.indexOf(" p99 ") + 5);
+					stats[1] = (long) Double.parseDouble(p99.substring(0, p99.indexOf(' ')));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+		return stats;
+	}
+
+	private void report(long start) {
+		long lastMoves = 0;
+		int tick = 0;
+		while (true) {
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+			tick++;
+			Histogram last = second.getAndSet(new Histogram());
+			long total = moves.get();
+			long perSecond = total - lastMoves;
+			lastMoves = total;
+			long[] server = serverStats();
+			synchronized (history) {
+				history.add(server == null ? new long[]{perSecond, last.percentile(0.99)}
+						: new long[]{perSecond, last.percentile(0.99), server[0], server[1]});
+			}
+			System.out.println(tick + "s: " + connected.get() + " connected, " + failed.get() + " failed, "
+					+ perSecond + " moves/s, round trip p50 " + last.percentile(0.5) / 1000
+					+ " p99 " + last.percentile(0.99) / 1000 + " us"
+					+ (server == null ? "" : "; server inbound " + server[0] + ", dispatch p99 " + server[1] + " us"));
+		}
+	}
+
+	private void summary(long wallNanos, long connectNanos) {
+		StringBuilder sb = new StringBuilder("\n");
+		double wall = wallNanos / 1e9;
+		sb.append("Clients:      ").append(connected.get()).append(" logged in, ").append(failed.get()).append(" failed\n");
+		sb.append("Connect rate: ").append(String.format("%.0f", connected.get() / Math.max(connectNanos / 1e9, 0.001)))
+				.append(" logins/s while connecting\n");
+		sb.append("Setup:        ").append(setup.report()).append('\n');
+		sb.append("Moves:        ").append(moves.get()).append(" (").append(String.format("%.0f", moves.get() / wall))
+				.append("/s), ").append(games.get()).append(" games, ").append(bookMoves.get()).append(" from the book, ")
+				.append(tablebaseMoves.get()).append(" from the tablebases\n");
+		sb.append("Round trip:   ").append(roundTrip.report()).append('\n');
+		synchronized (history) {
+			int busiest = -1;
+			long baseline = 0;
+			int knee = -1;
+			for (int i = 0; i < history.size(); i++) {
+				long[] s = history.get(i);
+				if (busiest == -1 || s[0] > history.get(busiest)[0]) {
+					busiest = i;
+				}
+				if (i < 3) {
+					baseline = Math.max(baseline, s[1]);
+				} else if (knee == -1 && baseline > 0 && s[1] > 10 * baseline) {
+					knee = i;
+				}
+			}
+			if (busiest >= 0) {
+				sb.append("Peak:         ").append(history.get(busiest)[0]).append(" moves/s at ")
+						.append(busiest + 1).append("s").append(server(history.get(busiest))).append('\n');
+			}
+			sb.append("Saturation:   ").append(knee == -1 ? "client-observed p99 round trip stayed within 10x of the start"
+					: "client-observed p99 round trip passed 10x the start at " + (knee + 1) + "s, "
+					+ history.get(knee)[0] + " moves/s" + server(history.get(knee))).append('\n');
+			if (admin <= 0) {
+				sb.append("              (no admin port, so the server's own queue and latency weren't checked)\n");
+			}
+		}
+		System.out.print(sb);
+	}
+
+	//What the server said about itself that second, if anything.
+	private static String server(long[] second) {
+		return second.length < 4 ? "" : " (server inbound queue " + second[2] + ", dispatch p99 " + second[3] + " us)";
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator load = new LoadGenerator();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "-host":
+					load.host = args[i + 1];
+					break;
+				case "-port":
+					load.port = Integer.parseInt(args[i + 1]);
+					break;
+				case "-admin":
+					load.admin = Integer.parseInt(args[i + 1]);
+					break;
+				case "-clients":
+					load.clients = Integer.parseInt(args[i + 1]);
+					break;
+				case "-rate":
+					load.rate = Integer.parseInt(args[i + 1]);
+					break;
+				case "-seconds":
+					load.seconds = Integer.parseInt(args[i + 1]);
+					break;
+				case "-think":
+					load.think = Integer.parseInt(args[i + 1]);
+					break;
+				case "-plies":
+					load.plies = Integer.parseInt(args[i + 1]);
+					break;
+				case "-prefix":
+					load.prefix = args[i + 1];
+					break;
+				case "-book":
+					load.book = new OpeningBook(new File(args[i + 1]));
+					break;
+				case "-tablebases":
+					load.tablebase = new Tablebase(new File(args[i + 1]));
+					break;
+				default:
+					System.out.println("Usage: LoadGenerator [-host H] [-port P] [-admin PORT] [-clients N] [-rate N/s] [-seconds S]\n"
+							+ "                     [-think MS] [-plies N] [-prefix NAME] [-book FILE] [-tablebases DIR]");
+					return;
+			}
+		}
+		if (load.admin == -1) {
+			InetAddress address = InetAddress.getByName(load.host);
+			load.admin = address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null ? 1730 : 0;
+		}
+		load.run();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * An asynchronous logger, so the main loop never waits on the console.
+ *
+ * Log calls put the event and its fields in a ring buffer and return; a
+ * daemon thread formats and writes whatever is in the ring in one go every
+ * few milliseconds.  If the ring fills up, because something is logging
+ * faster than the console takes it, new events are dropped and counted
+ * instead of slowing the caller, and the writer says how many it lost.
+ *
+ * Events are a short name plus key/value pairs:
+ *   Log.info("login", "player", name)
+ * comes out as
+ *   12:00:00.000 INFO  login player=bob
+ * The level is set with -DlogLevel=DEBUG|INFO|WARN|ERROR, INFO by default.
+ * Use enabled() to skip building anything expensive for a level that's off.
+ */
+package ChessServer;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class Log {
+
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	private static final String[] NAMES = {"DEBUG", "INFO ", "WARN ", "ERROR"};
+	private static final int LEVEL = level(System.getProperty("logLevel", "INFO"));
+	private static final int CAPACITY = 8192; //Events in the ring, a power of two
+	private static final int INTERVAL = 10; //Milliseconds between writes when the ring is empty
+
+	private static final long[] times = new long[CAPACITY];
+	private static final int[] levels = new int[CAPACITY];
+	private static final String[] events = new String[CAPACITY];
+	private static final Object[][] fields = new Object[CAPACITY][];
+	private static long head; //Next event to write out
+	private static long tail; //Next free slot
+	private static long dropped;
+	private static final Object lock = new Object();
+	private static final PrintStream out = System.out;
+	private static final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS"); //Writer only
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					if (drain() == 0) {
+						try {
+							Thread.sleep(INTERVAL);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}));
+	}
+
+	private Log() {
+	}
+
+	private static int level(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].trim().equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return INFO;
+	}
+
+	public static boolean enabled(int level) {
+		return level >= LEVEL;
+	}
+
+	public static void debug(String event, Object... keyValues) {
+		log(DEBUG, event, keyValues);
+	}
+
+	public static void info(String event, Object... keyValues) {
+		log(INFO, event, keyValues);
+	}
+
+	public static void warn(String event, Object... keyValues) {
+		log(WARN, event, keyValues);
+	}
+
+	public static void error(String event, Object... keyValues) {
+		log(ERROR, event, keyValues);
+	}
+
+	public static void log(int level, String event, Object... keyValues) {
+		if (level < LEVEL) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (lock) {
+			if (tail - head == CAPACITY) {
+				dropped++;
+				return;
+			}
+			int slot = (int) (tail++ & (CAPACITY - 1));
+			times[slot] = now;
+			levels[slot] = level;
+			events[slot] = event;
+			fields[slot] = keyValues;
+		}
+	}
+
+	//Writes out everything logged so far, for shutting down.
+	public static void flush() {
+		while (drain() > 0) {
+		}
+		out.flush();
+	}
+
+	//Formats and writes whatever is in the ring.  Returns how many events that was.
+	private static synchronized int drain() {
+		long from;
+		long to;
+		long lost;
+		synchronized (lock) {
+			from = head;
+			to = tail;
+			lost = dropped;
+			dropped = 0;
+		}
+		StringBuilder sb = new StringBuilder();
+		if (lost > 0) {
+			sb.append(format.format(new Date())).append(" WARN  log dropped=").append(lost).append('\n');
+		}
+		for (long i = from; i < to; i++) {
+			int slot = (int) (i & (CAPACITY - 1));
+			sb.append(format.format(new Date(times[slot]))).append(' ').append(NAMES[levels[slot]])
+					.append(' ').append(events[slot]);
+			Object[] keyValues = fields[slot];
+			for (int j = 0; j + 1 < keyValues.length; j += 2) {
+				sb.append(' ').append(keyValues[j]).append('=');
+				String value = String.valueOf(keyValues[j + 1]);
+				if (value.indexOf(' ') >= 0 || value.indexOf('\t') >= 0 || value.isEmpty()) {
+					sb.append('"').append(value).append('"');
+				} else {
+					sb.append(value);
+				}
+			}
+			sb.append('\n');
+			events[slot] = null;
+			fields[slot] = null;
+		}
+		synchronized (lock) {
+			head = to; //Only now can callers reuse the slots
+		}
+		if (sb.length() > 0) {
+			out.print(sb);
+			out.flush();
+		}
+		return (int) (to - from);
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Pairs players who sent "seek" with someone of a similar rating.
+ *
+ * Seeks are kept in a TreeSet ordered by rating, so adding or cancelling
+ * one is O(log n).  Every few milliseconds the matcher thread walks the
+ * set once in rating order and pairs neighbours whose ratings are close
+ * enough.  How close is close enough grows the longer a player has waited,
+ * so nobody waits forever just because nobody near their rating is around.
+ *
+ * Like Receiver, the matcher never touches profiles itself.  It queues up
+ * matches and the main loop starts the games, checking both players are
+ * still free.
+ */
+package ChessServer;
+
+import java.util.*;
+
+public class Matchmaker implements Runnable {
+
+	private static final int INTERVAL = 5; //Milliseconds between matching passes
+	private static final int BASE_WINDOW = 50; //Rating difference allowed right away
+	private static final int WINDOW_GROWTH = 100; //Milliseconds of waiting per extra rating point
+	private static final int MAX_WINDOW = 1000;
+	private static final int SAMPLES = 10000; //Time-to-match samples kept for percentiles
+
+	public static class Seek implements Comparable<Seek> {
+
+		public final Profile profile;
+		public final int rating;
+		public final long time;
+		private final long order; //Breaks ties so equal ratings can both be in the set
+
+		Seek(Profile profile, int rating, long time, long order) {
+			this.profile = profile;
+			this.rating = rating;
+			this.time = time;
+			this.order = order;
+		}
+
+		int window(long now) {
+			return (int) Math.min(MAX_WINDOW, BASE_WINDOW + (now - time) / WINDOW_GROWTH);
+		}
+
+		@Override
+		public int compareTo(Seek other) {
+			if (rating != other.rating) {
+				return rating < other.rating ? -1 : 1;
+			}
+			return Long.compare(order, other.order);
+		}
+	}
+
+	private final TreeSet<Seek> pool;
+	private final HashMap<String, Seek> byName;
+	private final Queue<Seek[]> matches;
+	private final long[] waits; //Ring of the last SAMPLES times to match
+	private long matched;
+	private long seeks;
+	private volatile boolean running;
+
+	public Matchmaker() {
+		pool = new TreeSet<>();
+		byName = new HashMap<>();
+		matches = new LinkedList<>();
+		waits = new long[SAMPLES];
+		matched = 0;
+		seeks = 0;
+		running = true;
+	}
+
+	//Returns false if the player was already seeking.
+	public synchronized boolean seek(Profile profile) {
+		if (byName.containsKey(profile.name)) {
+			return false;
+		}
+		Seek seek = new Seek(profile, profile.rating, System.currentTimeMillis(), seeks++);
+		pool.add(seek);
+		byName.put(profile.name, seek);
+		return true;
+	}
+
+	public synchronized boolean cancel(String name) {
+		Seek seek = byName.remove(name);
+		if (seek == null) {
+			return false;
+		}
+		pool.remove(seek);
+		return true;
+	}
+
+	public synchronized boolean check() {
+		return !matches.isEmpty();
+	}
+
+	//Two seeks, the first one waited longer.
+	public synchronized Seek[] nextMatch() {
+		return matches.poll();
+	}
+
+	public synchronized int waiting() {
+		return pool.size();
+	}
+
+	//One pass over the pool in rating order, pairing neighbours that are close enough.
+	synchronized void match() {
+		long now = System.currentTimeMillis();
+		Seek previous = null;
+		ArrayList<Seek> paired = new ArrayList<>();
+		for (Seek seek : pool) {
+			if (previous != null && seek.rating - previous.rating
+					<= Math.min(previous.window(now), seek.window(now))) {
+				paired.add(previous);
+				paired.add(seek);
+				previous = null;
+			} else {
+				previous = seek;
+			}
+		}
+		for (int i = 0; i < paired.size(); i += 2) {
+			Seek a = paired.get(i);
+			Seek b = paired.get(i + 1);
+			pool.remove(a);
+			pool.remove(b);
+			byName.remove(a.profile.name);
+			byName.remove(b.profile.name);
+			matches.offer(a.time <= b.time ? new Seek[]{a, b} : new Seek[]{b, a});
+			waits[(int) (matched++ % SAMPLES)] = now - a.time;
+			waits[(int) (matched++ % SAMPLES)] = now - b.time;
+		}
+	}
+
+	//Time-to-match percentiles over the recent matches.
+	public String report() {
+		long[] sample;
+		long total;
+		int waiting;
+		synchronized (this) {
+			sample = Arrays.copyOf(waits, (int) Math.min(matched, SAMPLES));
+			total = matched;
+			waiting = pool.size();
+		}
+		if (sample.length == 0) {
+			return "No matches yet, " + waiting + " waiting.";
+		}
+		Arrays.sort(sample);
+		return total + " players matched, " + waiting + " waiting. Time to match (ms): "
+				+ "p50 " + sample[sample.length / 2]
+				+ ", p90 " + sample[(int) (sample.length * 0.9)]
+				+ ", p99 " + sample[(int) (sample.length * 0.99)]
+				+ ", max " + sample[sample.length - 1];
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			match();
+			try {
+				Thread.sleep(INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+// The simplest evaluator: add up the pieces on the board.
+package ChessServer;
+
+import chesscore.Game;
+
+public class MaterialEvaluator implements Evaluator {
+
+	//Indexed by piece type like Game's grid (pawn, knight, bishop, rook, queen, king).
+	private static final int[] VALUES = {100, 320, 330, 500, 900, 0};
+
+	@Override
+	public int evaluate(Game game) {
+		int score = 0;
+		for (int i = 0; i < 8; i++) {
+			for (int j = 0; j < 8; j++) {
+				int space = game.getPiece(i, j);
+				if (space != -1) {
+					score += space / 8 == 1 ? -VALUES[space % 8] : VALUES[space % 8];
+				}
+			}
+		}
+		return score;
+	}
+}
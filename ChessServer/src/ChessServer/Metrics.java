@@ -0,0 +1,119 @@
+/*
+ * Counters and latency histograms for the whole server, in one place so
+ * any class can record without being handed anything.  Everything here is
+ * lock free; recording costs an atomic increment or two.
+ *
+ * report() is what the "stats" console command shows, and start() writes
+ * it to a file every so often, -DmetricsInterval=SECONDS (0 for never).
+ */
+package ChessServer;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Metrics {
+
+	//Something to read when the report is made, like the length of a queue.
+	public interface Gauge {
+
+		long value();
+	}
+
+	private static final int MAX_COMMANDS = 64; //Anything past this many kinds of message counts as "other"
+	public static final int INTERVAL = Integer.getInteger("metricsInterval", 60);
+
+	public static final AtomicLong connections = new AtomicLong(); //Open right now
+	public static final AtomicLong connected = new AtomicLong(); //Since the start
+	public static final AtomicLong received = new AtomicLong();
+	public static final AtomicLong sent = new AtomicLong();
+	public static final AtomicLong sendErrors = new AtomicLong();
+	public static final AtomicLong inbound = new AtomicLong(); //Messages read but not handled yet
+	public static final AtomicLong outbound = new AtomicLong(); //Broadcast messages not written yet
+	public static final Histogram dispatch = new Histogram(); //From reading a message to handling it
+	public static final Histogram write = new Histogram(); //Writing one message to a socket
+	public static final Histogram move = new Histogram(); //Validating and playing a move
+	public static final Histogram checkmate = new Histogram();
+	public static final AtomicLong rejected = new AtomicLong(); //Illegal moves sent back
+	public static final AtomicLong adjudicated = new AtomicLong(); //Games ended by the tablebases
+	private static final ConcurrentHashMap<String, Histogram> commands = new ConcurrentHashMap<>();
+	private static final Map<String, Gauge> gauges = Collections.synchronizedMap(new LinkedHashMap<String, Gauge>());
+	private static final long started = System.currentTimeMillis();
+
+	private Metrics() {
+	}
+
+	//How long each kind of message takes to handle.
+	public static Histogram command(String type) {
+		Histogram histogram = commands.get(type);
+		if (histogram == null) {
+			if (commands.size() >= MAX_COMMANDS) {
+				type = "other";
+			}
+			histogram = commands.putIfAbsent(type, new Histogram());
+			if (histogram == null) {
+				histogram = commands.get(type);
+			}
+		}
+		return histogram;
+	}
+
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public static String report() {
+		long uptime = Math.max(1, (System.currentTimeMillis() - started) / 1000);
+		StringBuilder sb = new StringBuilder();
+		sb.append("Uptime:       ").append(uptime).append(" s\n");
+		sb.append("Connections:  ").append(connections.get()).append(" open, ").append(connected.get()).append(" total\n");
+		sb.append("Received:     ").append(received.get()).append(" (").append(received.get() / uptime).append("/s)\n");
+		sb.append("Sent:         ").append(sent.get()).append(" (").append(sent.get() / uptime).append("/s), ")
+				.append(sendErrors.get()).append(" failed\n");
+		sb.append("Inbound queue:  ").append(inbound.get()).append('\n');
+		sb.append("Outbound queue: ").append(outbound.get()).append('\n');
+		sb.append("Rejected moves: ").append(rejected.get()).append('\n');
+		sb.append("Adjudicated:    ").append(adjudicated.get()).append('\n');
+		synchronized (gauges) {
+			for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+				sb.append(entry.getKey()).append(": ").append(entry.getValue().value()).append('\n');
+			}
+		}
+		sb.append("\nLatency (count | microseconds)\n");
+		sb.append("dispatch   ").append(dispatch.report()).append('\n');
+		sb.append("write      ").append(write.report()).append('\n');
+		sb.append("move       ").append(move.report()).append('\n');
+		sb.append("checkmate  ").append(checkmate.report()).append('\n');
+		for (Map.Entry<String, Histogram> entry : new TreeMap<>(commands).entrySet()) {
+			sb.append("cmd ").append(entry.getKey()).append("  ").append(entry.getValue().report()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	//Writes the report to file every INTERVAL seconds on a daemon thread.
+	public static void start(final String file) {
+		if (INTERVAL <= 0) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(INTERVAL * 1000L);
+					} catch (InterruptedException e) {
+						return;
+					}
+					try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+						bw.write(new Date() + "\n" + report());
+					} catch (IOException e) {
+						Log.warn("writing metrics failed", "file", file, "error", e);
+					}
+				}
+			}
+		}, "metrics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,249 @@
+// Converts between Game and the standard FEN and SAN notations.
+// Game's own state string has black in uppercase at the top, FEN is the other way around.
+package ChessServer;
+
+import chesscore.Game;
+
+public class Notation {
+
+	private static final String PIECES = "pnbrqk";
+	public static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+	private Notation() {
+	}
+
+	//Square names, rank 0 in Game is rank 8 on the board.
+	public static String square(int rank, int file) {
+		return "" + (char) ('a' + file) + (char) ('8' - rank);
+	}
+
+	public static String toFen(Game game) {
+		String state = game.gameState();
+		StringBuilder fen = new StringBuilder(90);
+		for (int i = 0; i < 8; i++) {
+			int empty = 0;
+			for (int j = 0; j < 8; j++) {
+				char piece = state.charAt(i * 8 + j);
+				if (piece == '.') {
+					empty++;
+					continue;
+				}
+				if (empty > 0) {
+					fen.append(empty);
+					empty = 0;
+				}
+				fen.append(Character.isUpperCase(piece) ? Character.toLowerCase(piece) : Character.toUpperCase(piece));
+			}
+			if (empty > 0) {
+				fen.append(empty);
+			}
+			if (i < 7) {
+				fen.append('/');
+			}
+		}
+		boolean black = state.charAt(64) == '1';
+		fen.append(black ? " b " : " w ");
+		String castling = (state.charAt(66) == '1' ? "K" : "") + (state.charAt(65) == '1' ? "Q" : "")
+				+ (state.charAt(68) == '1' ? "k" : "") + (state.charAt(67) == '1' ? "q" : "");
+		fen.append(castling.isEmpty() ? "-" : castling);
+		int enPassantFile = state.charAt(69) - '0';
+		fen.append(' ').append(enPassantFile == -1 ? "-" : square(black ? 5 : 2, enPassantFile));
+		//Game doesn't keep a halfmove clock, and only knows how many moves it has seen itself.
+		fen.append(" 0 ").append(1 + (game.historyLength() + (black ? 1 : 0)) / 2);
+		return fen.toString();
+	}
+
+	//Builds a game from a FEN.  Throws IllegalArgumentException if it can't be read.
+	public static Game fromFen(String fen) {
+		String[] fields = fen.trim().split("\\s+");
+		if (fields.length < 2) {
+			throw new IllegalArgumentException("Bad FEN: " + fen);
+		}
+		StringBuilder state = new StringBuilder(70);
+		String[] rows = fields[0].split("/");
+		if (rows.length != 8) {
+			throw new IllegalArgumentException("Bad FEN: " + fen);
+		}
+		int whiteKings = 0;
+		int blackKings = 0;
+		for (String row : rows) {
+			int length = state.length();
+			for (int k = 0; k < row.length(); k++) {
+				char c = row.charAt(k);
+				if (c >= '1' && c <= '8') {
+					for (int e = 0; e < c - '0'; e++) {
+						state.append('.');
+					}
+				} else if (PIECES.indexOf(Character.toLowerCase(c)) != -1) {
+					state.append(Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+					whiteKings += c == 'K' ? 1 : 0;
+					blackKings += c == 'k' ? 1 : 0;
+				} else {
+					throw new IllegalArgumentException("Bad FEN: " + fen);
+				}
+			}
+			if (state.length() - length != 8) {
+				throw new IllegalArgumentException("Bad FEN: " + fen);
+			}
+		}
+		if (whiteKings != 1 || blackKings != 1) {
+			throw new IllegalArgumentException("Bad FEN, need one king each: " + fen);
+		}
+		state.append(fields[1].equals("b") ? '1' : '0');
+		String castling = fields.length > 2 ? fields[2] : "-";
+		state.append(castling.indexOf('Q') != -1 ? '1' : '0');
+		state.append(castling.indexOf('K') != -1 ? '1' : '0');
+		state.append(castling.indexOf('q') != -1 ? '1' : '0');
+		state.append(castling.indexOf('k') != -1 ? '1' : '0');
+		String enPassant = fields.length > 3 ? fields[3] : "-";
+		state.append(enPassant.equals("-") ? '/' : (char) (enPassant.charAt(0) - 'a' + '0'));
+		return new Game(state.toString());
+	}
+
+	/*
+	 * Finds the legal move a SAN token like "Nbd7", "exd6", "O-O" or "e8=Q+"
+	 * describes.  Returns -1 if no legal move matches or it is ambiguous.
+	 */
+	public static short parseSan(Game game, String san) {
+		return parseSan(game, san, game.legalMoves());
+	}
+
+	public static short parseSan(Game game, String san, short[] legal) {
+		int end = san.length();
+		while (end > 0 && "+#!?".indexOf(san.charAt(end - 1)) != -1) {
+			end--;
+		}
+		san = san.substring(0, end);
+		if (san.equals("O-O") || san.equals("0-0") || san.equals("O-O-O") || san.equals("0-0-0")) {
+			int rank = game.getTurn() ? 0 : 7;
+			int endFile = san.length() == 3 ? 6 : 2;
+			return find(legal, Game.encodeMove(rank, 4, rank, endFile, '\0'), game, 5);
+		}
+
+		int type = 0;
+		int k = 0;
+		if (!san.isEmpty() && "NBRQK".indexOf(san.charAt(0)) != -1) {
+			type = PIECES.indexOf(Character.toLowerCase(san.charAt(0)));
+			k = 1;
+		}
+		int promotion = 0;
+		int eq = san.indexOf('=');
+		if (eq != -1 && eq + 1 < san.length()) {
+			promotion = PIECES.indexOf(Character.toLowerCase(san.charAt(eq + 1)));
+			san = san.substring(0, eq);
+		} else if (type == 0 && san.length() > 2 && "NBRQ".indexOf(san.charAt(san.length() - 1)) != -1) {
+			promotion = PIECES.indexOf(Character.toLowerCase(san.charAt(san.length() - 1))); //"e8Q"
+			san = san.substring(0, san.length() - 1);
+		}
+		if (san.length() - k < 2) {
+			return -1;
+		}
+		int endFile = san.charAt(san.length() - 2) - 'a';
+		int endRank = '8' - san.charAt(san.length() - 1);
+		if (endFile < 0 || endFile > 7 || endRank < 0 || endRank > 7) {
+			return -1;
+		}
+		int fromFile = -1;
+		int fromRank = -1;
+		for (int i = k; i < san.length() - 2; i++) {
+			char c = san.charAt(i);
+			if (c >= 'a' && c <= 'h') {
+				fromFile = c - 'a';
+			} else if (c >= '1' && c <= '8') {
+				fromRank = '8' - c;
+			}
+		}
+
+		short match = -1;
+		for (short move : legal) {
+			int start = move & 63;
+			int to = (move >> 6) & 63;
+			if (to != endRank * 8 + endFile || ((move >> 12) & 7) != promotion
+					|| game.getPiece(start / 8, start % 8) % 8 != type
+					|| (fromFile != -1 && start % 8 != fromFile)
+					|| (fromRank != -1 && start / 8 != fromRank)) {
+				continue;
+			}
+			if (match != -1) {
+				return -1; //Ambiguous
+			}
+			match = move;
+		}
+		return match;
+	}
+
+	private static short find(short[] legal, short move, Game game, int type) {
+		for (short m : legal) {
+			if (m == move && game.getPiece((m & 63) / 8, (m & 63) % 8) % 8 == type) {
+				return m;
+			}
+		}
+		return -1;
+	}
+
+	//The SAN for a legal move in this position, with + or # if it gives check or mate.
+	public static String toSan(Game game, short move) {
+		return toSan(game, move, game.legalMoves());
+	}
+
+	public static String toSan(Game game, short move, short[] legal) {
+		int start = move & 63;
+		int end = (move >> 6) & 63;
+		int promotion = (move >> 12) & 7;
+		int startRank = start / 8;
+		int startFile = start % 8;
+		int endRank = end / 8;
+		int endFile = end % 8;
+		int type = game.getPiece(startRank, startFile) % 8;
+		StringBuilder san = new StringBuilder(8);
+
+		if (type == 5 && Math.abs(endFile - startFile) == 2) {
+			san.append(endFile == 6 ? "O-O" : "O-O-O");
+		} else {
+			boolean capture = game.getPiece(endRank, endFile) != -1
+					|| (type == 0 && startFile != endFile); //En passant lands on an empty square
+			if (type == 0) {
+				if (capture) {
+					san.append((char) ('a' + startFile));
+				}
+			} else {
+				san.append(Character.toUpperCase(PIECES.charAt(type)));
+				boolean ambiguous = false;
+				boolean sameFile = false;
+				boolean sameRank = false;
+				for (short other : legal) {
+					int otherStart = other & 63;
+					if (other != move && ((other >> 6) & 63) == end
+							&& game.getPiece(otherStart / 8, otherStart % 8) % 8 == type) {
+						ambiguous = true;
+						sameFile |= otherStart % 8 == startFile;
+						sameRank |= otherStart / 8 == startRank;
+					}
+				}
+				if (ambiguous) {
+					if (!sameFile) {
+						san.append((char) ('a' + startFile));
+					} else if (!sameRank) {
+						san.append((char) ('8' - startRank));
+					} else {
+						san.append(square(startRank, startFile));
+					}
+				}
+			}
+			if (capture) {
+				san.append('x');
+			}
+			san.append(square(endRank, endFile));
+			if (promotion != 0) {
+				san.append('=').append(Character.toUpperCase(PIECES.charAt(promotion)));
+			}
+		}
+
+		Game after = new Game(game.gameState());
+		after.move(move);
+		if (after.inCheck(after.getTurn())) {
+			san.append(after.checkmate(after.getTurn()) == 1 ? '#' : '+');
+		}
+		return san.toString();
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * The client of a guest: a player connected to another node of the cluster
+ * who is playing, or has been asked to play, a game hosted here.  What the
+ * main loop sends them goes over the bus to their node, which writes it to
+ * their socket, and the commands their node forwards are queued here as if
+ * they had been read from a socket.  See Cluster.
+ */
+package ChessServer;
+
+import java.nio.charset.StandardCharsets;
+
+public class Peer extends Client {
+
+	private final Bus bus;
+	final int node; //Where the player is connected
+	final String name;
+	String result; //Set when their game ends: their score, the opponent and the opponent's rating
+
+	Peer(Bus bus, int node, String name) {
+		this.bus = bus;
+		this.node = node;
+		this.name = name;
+	}
+
+	@Override
+	public boolean send(String message) {
+		long start = System.nanoTime();
+		try {
+			if (bus.send(node, "deliver", name, message)) {
+				Metrics.sent.incrementAndGet();
+				return true;
+			}
+			Metrics.sendErrors.incrementAndGet();
+			return false;
+		} finally {
+			Metrics.write.record(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public boolean send(byte[] message) {
+		return send(new String(message, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void close() {
+		markClosed();
+	}
+}
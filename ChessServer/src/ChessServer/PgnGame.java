@@ -0,0 +1,24 @@
+// One game read from or written to a PGN file.
+package ChessServer;
+
+import chesscore.Game;
+import java.util.*;
+
+public class PgnGame {
+
+	public LinkedHashMap<String, String> tags; //In the order they appeared
+	public Game game; //Replayed up to the last move that could be read
+	public String result; //"1-0", "0-1", "1/2-1/2" or "*"
+	public String error; //Why the moves stopped early, or null if they all played
+
+	public PgnGame() {
+		tags = new LinkedHashMap<>();
+		game = null;
+		result = "*";
+		error = null;
+	}
+
+	public String tag(String name) {
+		return tags.get(name);
+	}
+}
@@ -0,0 +1,186 @@
+// Reads a PGN file in parallel by splitting it into chunks that each start at an [Event tag.
+// Each chunk is streamed through its own PgnReader, so memory stays at one game per thread.
+package ChessServer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PgnImport {
+
+	//Gets every game read.  Called from the worker threads, so it has to be thread safe.
+	public interface Handler {
+
+		void game(PgnGame pgn);
+	}
+
+	public final AtomicLong games = new AtomicLong();
+	public final AtomicLong errors = new AtomicLong();
+	public final AtomicLong bytes = new AtomicLong();
+
+	public void importFile(File file, int threads, final Handler handler) throws IOException, InterruptedException {
+		final long[] bounds = split(file, threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<?>> results = new ArrayList<>();
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			final File f = file;
+			final long start = bounds[i];
+			final long end = bounds[i + 1];
+			results.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					importChunk(f, start, end, handler);
+					return null;
+				}
+			}));
+		}
+		pool.shutdown();
+		try {
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException e) {
+			pool.shutdownNow();
+			throw new IOException("Import failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	private void importChunk(File file, long start, long end, Handler handler) throws IOException {
+		InputStream is = new FileInputStream(file);
+		long skipped = 0;
+		while (skipped < start) {
+			skipped += is.skip(start - skipped);
+		}
+		try (PgnReader reader = new PgnReader(new InputStreamReader(
+				new ChunkStream(is, end - start), StandardCharsets.ISO_8859_1))) {
+			PgnGame pgn;
+			while ((pgn = reader.next()) != null) {
+				games.incrementAndGet();
+				if (pgn.error != null) {
+					errors.incrementAndGet();
+				}
+				handler.game(pgn);
+			}
+		}
+		bytes.addAndGet(end - start);
+	}
+
+	/*
+	 * Cuts the file into roughly equal chunks, moving each cut forward to the
+	 * start of the next game so no game is split between two readers.
+	 */
+	static long[] split(File file, int chunks) throws IOException {
+		long size = file.length();
+		ArrayList<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+		byte[] marker = "\n[Event ".getBytes(StandardCharsets.ISO_8859_1);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			byte[] buffer = new byte[1 << 16];
+			for (int k = 1; k < chunks; k++) {
+				long pos = Math.max(size * k / chunks, bounds.get(bounds.size() - 1));
+				long found = size;
+				search:
+				while (pos < size) {
+					raf.seek(pos);
+					int n = raf.read(buffer);
+					if (n <= 0) {
+						break;
+					}
+					for (int i = 0; i + marker.length <= n; i++) {
+						int j = 0;
+						while (j < marker.length && buffer[i + j] == marker[j]) {
+							j++;
+						}
+						if (j == marker.length) {
+							found = pos + i + 1;
+							break search;
+						}
+					}
+					if (n < marker.length) {
+						break;
+					}
+					pos += n - marker.length + 1; //Overlap so a marker across the edge isn't missed
+				}
+				if (found > bounds.get(bounds.size() - 1) && found < size) {
+					bounds.add(found);
+				}
+			}
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	//Stops reading after the end of the chunk.
+	private static class ChunkStream extends FilterInputStream {
+
+		private long remaining;
+
+		ChunkStream(InputStream in, long length) {
+			super(new BufferedInputStream(in, 1 << 16));
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int c = super.read();
+			if (c != -1) {
+				remaining--;
+			}
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+	}
+
+	//Usage: PgnImport file.pgn [threads] [out.pgn]
+	//Reads every game and reports how many could be replayed.  With out.pgn, rewrites them there.
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: PgnImport file.pgn [threads] [out.pgn]");
+			return;
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		final PgnWriter out = args.length > 2 ? new PgnWriter(new BufferedWriter(new FileWriter(args[2]))) : null;
+		PgnImport pgnImport = new PgnImport();
+		long start = System.currentTimeMillis();
+		pgnImport.importFile(new File(args[0]), threads, new Handler() {
+			@Override
+			public void game(PgnGame pgn) {
+				if (out != null && pgn.error == null) {
+					synchronized (out) {
+						try {
+							out.write(pgn);
+						} catch (IOException e) {
+							System.out.println("Problem with writing file: " + e);
+						}
+					}
+				}
+			}
+		});
+		if (out != null) {
+			out.close();
+		}
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println(pgnImport.games.get() + " games (" + pgnImport.errors.get() + " with errors) in "
+				+ time + " ms, " + (pgnImport.games.get() * 1000 / time) + " games/s");
+	}
+}
@@ -0,0 +1,142 @@
+// Reads PGN one game at a time, so only the game being read is ever in memory.
+package ChessServer;
+
+import chesscore.Game;
+import java.io.*;
+
+public class PgnReader implements Closeable {
+
+	private final BufferedReader br;
+	private String pending; //A line read past the end of the last game
+
+	public PgnReader(Reader r) {
+		br = r instanceof BufferedReader ? (BufferedReader) r : new BufferedReader(r, 1 << 16);
+		pending = null;
+	}
+
+	private String nextLine() throws IOException {
+		if (pending != null) {
+			String line = pending;
+			pending = null;
+			return line;
+		}
+		return br.readLine();
+	}
+
+	//Returns the next game, or null at the end of the input.
+	public PgnGame next() throws IOException {
+		PgnGame pgn = new PgnGame();
+		String line;
+		while ((line = nextLine()) != null && line.trim().isEmpty()) {
+		}
+		if (line == null) {
+			return null;
+		}
+
+		//Tag section
+		while (line != null && line.startsWith("[")) {
+			int quote = line.indexOf('"');
+			int close = line.lastIndexOf('"');
+			if (quote > 1 && close > quote) {
+				pgn.tags.put(line.substring(1, quote).trim(), line.substring(quote + 1, close).replace("\\\"", "\""));
+			}
+			line = nextLine();
+		}
+
+		//Movetext, up to a blank line or the next tag section
+		StringBuilder movetext = new StringBuilder(512);
+		while (line != null && line.trim().isEmpty()) {
+			line = nextLine();
+		}
+		while (line != null) {
+			if (line.startsWith("[")) {
+				pending = line;
+				break;
+			}
+			if (line.trim().isEmpty() && movetext.length() > 0 && !insideComment(movetext)) {
+				break;
+			}
+			if (!line.startsWith("%")) { //Escaped lines
+				movetext.append(line).append('\n');
+			}
+			line = nextLine();
+		}
+
+		String fen = pgn.tag("FEN");
+		try {
+			pgn.game = fen == null ? new Game() : Notation.fromFen(fen);
+		} catch (IllegalArgumentException e) {
+			pgn.error = e.getMessage();
+			return pgn;
+		}
+		play(pgn, movetext);
+		if (pgn.tag("Result") != null && pgn.result.equals("*")) {
+			pgn.result = pgn.tag("Result");
+		}
+		return pgn;
+	}
+
+	private static boolean insideComment(StringBuilder text) {
+		return text.lastIndexOf("{") > text.lastIndexOf("}");
+	}
+
+	//Walks the movetext, skipping comments, variations, NAGs and move numbers.
+	private static void play(PgnGame pgn, CharSequence text) {
+		int depth = 0; //Variation nesting
+		int i = 0;
+		int n = text.length();
+		while (i < n) {
+			char c = text.charAt(i);
+			if (c == '{') {
+				while (i < n && text.charAt(i) != '}') {
+					i++;
+				}
+				i++;
+			} else if (c == ';') {
+				while (i < n && text.charAt(i) != '\n') {
+					i++;
+				}
+			} else if (c == '(') {
+				depth++;
+				i++;
+			} else if (c == ')') {
+				depth--;
+				i++;
+			} else if (Character.isWhitespace(c)) {
+				i++;
+			} else {
+				int start = i;
+				while (i < n && !Character.isWhitespace(text.charAt(i)) && "{}();".indexOf(text.charAt(i)) == -1) {
+					i++;
+				}
+				if (depth > 0 || pgn.error != null) {
+					continue;
+				}
+				String token = text.subSequence(start, i).toString();
+				int dot = token.lastIndexOf('.');
+				if (dot != -1) {
+					token = token.substring(dot + 1); //"12." "12..." and "12.e4"
+				}
+				if (token.isEmpty() || token.charAt(0) == '$') {
+					continue;
+				}
+				if (token.equals("1-0") || token.equals("0-1") || token.equals("1/2-1/2") || token.equals("*")) {
+					pgn.result = token;
+					continue;
+				}
+				short move = Notation.parseSan(pgn.game, token);
+				if (move == -1) {
+					pgn.error = "Illegal or ambiguous move " + token + " after "
+							+ pgn.game.historyLength() + " plies";
+				} else {
+					pgn.game.move(move);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		br.close();
+	}
+}
@@ -0,0 +1,85 @@
+// Writes games out as PGN.
+package ChessServer;
+
+import chesscore.Game;
+import java.io.*;
+import java.util.*;
+
+public class PgnWriter implements Closeable {
+
+	private static final String CRLF = "\r\n";
+	private static final String[] ROSTER = {"Event", "Site", "Date", "Round", "White", "Black", "Result"};
+	private final Writer w;
+
+	public PgnWriter(Writer w) {
+		this.w = w;
+	}
+
+	public void write(PgnGame pgn) throws IOException {
+		write(pgn.tags, pgn.game, pgn.result);
+	}
+
+	/*
+	 * Writes the seven standard tags first (with "?" for any that are
+	 * missing), then any others, then the moves replayed from the start of the
+	 * game's history.
+	 */
+	public void write(Map<String, String> tags, Game game, String result) throws IOException {
+		StringBuilder out = new StringBuilder(1024);
+		for (String name : ROSTER) {
+			String value = name.equals("Result") ? result : tags.get(name);
+			tag(out, name, value == null ? "?" : value);
+		}
+		Game position = game.replay(0);
+		boolean setUp = !position.gameState().equals(new Game().gameState());
+		for (Map.Entry<String, String> entry : tags.entrySet()) {
+			if (!Arrays.asList(ROSTER).contains(entry.getKey())
+					&& !entry.getKey().equals("SetUp") && !entry.getKey().equals("FEN")) {
+				tag(out, entry.getKey(), entry.getValue());
+			}
+		}
+		if (setUp) {
+			tag(out, "SetUp", "1");
+			tag(out, "FEN", Notation.toFen(position));
+		}
+		out.append(CRLF);
+
+		int lineStart = out.length();
+		int offset = position.getTurn() ? 1 : 0; //Games set up with black to move start at "1..."
+		for (int i = 0; i < game.historyLength(); i++) {
+			short move = game.historyMove(i);
+			String token = Notation.toSan(position, move);
+			if (!position.getTurn()) {
+				token = ((i + offset) / 2 + 1) + ". " + token;
+			} else if (i == 0) {
+				token = "1... " + token;
+			}
+			if (out.length() - lineStart + token.length() > 79) {
+				out.append(CRLF);
+				lineStart = out.length();
+			} else if (out.length() > lineStart) {
+				out.append(' ');
+			}
+			out.append(token);
+			position.move(move);
+		}
+		if (out.length() > lineStart) {
+			out.append(' ');
+		}
+		out.append(result).append(CRLF).append(CRLF);
+		w.write(out.toString());
+	}
+
+	private static void tag(StringBuilder out, String name, String value) {
+		out.append('[').append(name).append(" \"").append(value.replace("\"", "\\\"")).append("\"]").append(CRLF);
+	}
+
+	public void flush() throws IOException {
+		w.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		w.close();
+	}
+}
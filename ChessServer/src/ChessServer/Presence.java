@@ -0,0 +1,90 @@
+/*
+ * Tracks who is online and tells subscribed clients about changes.
+ *
+ * Every login or logoff bumps the version by one.  Changes made during one
+ * pass of the main loop are sent together by flush(), as one message built
+ * once and sent to every subscriber:
+ *   presence VERSION [tab] +name [tab] -name ...
+ * where VERSION is the version after the last change.  A client that knows
+ * its version plus the number of changes doesn't add up to VERSION has
+ * missed something and sends "subscribe" to get a full snapshot:
+ *   presence VERSION [tab] * [tab] name [tab] name ...
+ */
+package ChessServer;
+
+import java.util.*;
+
+public class Presence {
+
+	private static final String CRLF = "\r\n";
+	private final LinkedHashSet<String> online;
+	private final LinkedHashSet<Client> subscribers;
+	private long version;
+	private final StringBuilder changes; //Not sent yet
+	private String names; //Cached tab-separated list, null when out of date
+
+	public Presence() {
+		online = new LinkedHashSet<>();
+		subscribers = new LinkedHashSet<>();
+		version = 0;
+		changes = new StringBuilder();
+		names = null;
+	}
+
+	public void add(String name) {
+		if (online.add(name)) {
+			change('+', name);
+		}
+	}
+
+	public void remove(String name) {
+		if (online.remove(name)) {
+			change('-', name);
+		}
+	}
+
+	private void change(char type, String name) {
+		version++;
+		changes.append('\t').append(type).append(name);
+		names = null;
+	}
+
+	//Subscribes the client (again, if it was already) and sends it a snapshot.
+	public void subscribe(Client client) {
+		flush(); //So the snapshot and the next change line up
+		subscribers.add(client);
+		client.send("presence " + version + "\t*\t" + names() + CRLF);
+	}
+
+	public void unsubscribe(Client client) {
+		subscribers.remove(client);
+	}
+
+	//Everyone online, separated by tabs, for the old "players" message.
+	public String names() {
+		if (names == null) {
+			StringBuilder sb = new StringBuilder(online.size() * 12);
+			for (String name : online) {
+				sb.append(name).append('\t');
+			}
+			names = sb.toString();
+		}
+		return names;
+	}
+
+	public int size() {
+		return online.size();
+	}
+
+	//Sends whatever changed since the last flush to every subscriber.
+	public void flush() {
+		if (changes.length() == 0) {
+			return;
+		}
+		String message = "presence " + version + changes + CRLF;
+		changes.setLength(0);
+		for (Client client : subscribers) {
+			client.send(message);
+		}
+	}
+}
@@ -2,18 +2,35 @@
 //Maybe this should have the send function and the server loops through profiles connected to clients
 package ChessServer;
 
+import chesscore.Game;
+
+/*
+ * A player and whoever they are paired with.  Two profiles point at each
+ * other while a request is open or a game is on, so every change to a pair
+ * is one of the operations below, which lock both profiles (always in name
+ * order, so two threads can't deadlock) and check the pair is still what
+ * they expect before changing anything.  The fields stay readable without
+ * a lock.
+ */
 public class Profile {
 
-	public String name;
-	public String password;
-	public Game game;
-	public Client client;
-	public boolean color; //counterpart designation (requester or requested / white or black)
-	public Profile opp; //counterpart
-	
-	public /*it's been such a*/ long time;
+	public final String name;
+	public final String password;
+	public volatile Game game;
+	public volatile Client client;
+	public volatile boolean color; //counterpart designation (requester or requested / white or black)
+	public volatile Profile opp; //counterpart
+	public volatile int rating; //Everyone starts at 1500
+	volatile long lastUsed; //For ProfileCache to find the least recently used
+	boolean guest; //Lives on another node of the cluster, see Cluster
+	//For "resume": the session token, the game the client last got in full, and how it ended.
+	public volatile String token;
+	volatile Game seen;
+	volatile String outcome;
+
+	public /*it's been such a*/ volatile long time;
 	private boolean linked;
-	
+
 	public Profile(String n, String p) {
 		name = n;
 		password = p;
@@ -21,14 +38,32 @@ public class Profile {
 		color = false;
 		linked = false;
 		opp = null;
+		rating = 1500;
 		time = 0;
 	}
 
+	//A stand-in for a player from another node, never saved here.
+	static Profile guest(String name, int rating) {
+		Profile guest = new Profile(name, null);
+		guest.rating = rating;
+		guest.guest = true;
+		return guest;
+	}
+
+	public boolean send(String message) {
+		Client c = client;
+		if (c != null) {
+			c.send(message);
+			return true;
+		}
+		return false;
+	}
+
 	public boolean oppSend(String message)
 	{
-		if (opp != null && opp.client != null) {
-			opp.client.send(message);
-			return true;
+		Profile o = opp;
+		if (o != null) {
+			return o.send(message);
 		}
 		return false;
 	}
@@ -38,36 +73,26 @@ public class Profile {
 				: ("is the " + colorWord() + " player in a game with " + opp.name)) + ".");
 	}
 
-	public void logOff() {
+	//Detaches the client.  False if another one has taken over since, see takeOver().
+	public synchronized boolean logOff(Client c) {
+		if (client != c) {
+			return false;
+		}
 		linked = false;
+		client = null;
+		return true;
 	}
 
 	public void setTime() {
 		time = System.currentTimeMillis();
 	}
 
-	public void setGame(Game g) {
-		game = g;
-		opp.game = g;
-	}
-
-	public void setColor(boolean c) {
-		color = c;
-		opp.color = !c;
-	}
-
-	public void setOpp(Profile request) {
-		opp = request;
-		opp.opp = this;
-		color = false;
-		opp.color = true;
-	}
-
 	public String colorWord() {
 		return color ? "black" : "white";
 	}
 
-	public boolean connect(Client c) {
+	//Attaches the client unless someone is already logged in as this player.
+	public synchronized boolean connect(Client c) {
 		if (linked) {
 			return false;
 		} else {
@@ -78,20 +103,120 @@ public class Profile {
 		}
 	}
 
-	public void gameOver() {
-		game = null;
-		opp.game = null;
-		color = false;
-		opp.color = false;
-		opp.opp = null;
-		opp = null;
+	//Attaches the client even if one is attached already, which is closed.  For clients holding the session token.
+	public synchronized void takeOver(Client c) {
+		Client old = client;
+		linked = true;
+		client = c;
+		client.id = this;
+		if (old != null && old != c) {
+			old.close();
+		}
 	}
 
-	public void resetRequest() {
-		color = false;
-		opp.color = false;
-		opp.opp = null;
-		opp = null;
-		time = 0;
+	//Something done to a profile and its opponent with both locked.  opp is null if there is none.
+	interface PairAction {
+
+		boolean apply(Profile player, Profile opp);
+	}
+
+	//Locks the player and their current opponent and runs the action, retrying if the opponent changes first.
+	static boolean withPair(Profile player, PairAction action) {
+		while (true) {
+			Profile other = player.opp;
+			if (other == null) {
+				synchronized (player) {
+					if (player.opp == null) {
+						return action.apply(player, null);
+					}
+				}
+				continue;
+			}
+			Profile first = player.name.compareTo(other.name) < 0 ? player : other;
+			Profile second = first == player ? other : player;
+			synchronized (first) {
+				synchronized (second) {
+					if (player.opp == other) {
+						return action.apply(player, other);
+					}
+				}
+			}
+		}
+	}
+
+	//Pairs two free players, the requester as white for now.  False if either is already paired.
+	public static boolean pair(Profile requester, Profile requested) {
+		if (requester == requested) {
+			return false;
+		}
+		Profile first = requester.name.compareTo(requested.name) < 0 ? requester : requested;
+		Profile second = first == requester ? requested : requester;
+		synchronized (first) {
+			synchronized (second) {
+				if (requester.opp != null || requested.opp != null) {
+					return false;
+				}
+				requester.opp = requested;
+				requested.opp = requester;
+				requester.color = false;
+				requested.color = true;
+				return true;
+			}
+		}
+	}
+
+	//Starts a game with this player as the given color.  False unless paired and not already playing.
+	public boolean startGame(final Game g, final boolean c) {
+		return withPair(this, new PairAction() {
+			@Override
+			public boolean apply(Profile player, Profile other) {
+				if (other == null || player.game != null) {
+					return false;
+				}
+				player.game = g;
+				other.game = g;
+				player.color = c;
+				other.color = !c;
+				return true;
+			}
+		});
+	}
+
+	//Drops an open request from either side.  False if there is none, or the game already started.
+	public boolean unpair() {
+		return withPair(this, new PairAction() {
+			@Override
+			public boolean apply(Profile player, Profile other) {
+				if (other == null || player.game != null) {
+					return false;
+				}
+				player.opp = null;
+				other.opp = null;
+				player.color = false;
+				other.color = false;
+				player.time = 0;
+				other.time = 0;
+				return true;
+			}
+		});
+	}
+
+	//Ends the game and frees both players.  False if they weren't paired.
+	public boolean endGame() {
+		return withPair(this, new PairAction() {
+			@Override
+			public boolean apply(Profile player, Profile other) {
+				if (other == null) {
+					return false;
+				}
+				player.game = null;
+				other.game = null;
+				player.color = false;
+				other.color = false;
+				player.opp = null;
+				other.opp = null;
+				return true;
+			}
+		});
 	}
 }
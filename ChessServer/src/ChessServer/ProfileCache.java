@@ -0,0 +1,508 @@
+// Keeps the profiles of online players (and whoever they are paired with) in memory.
+// Everyone else stays in the profile file until a login or request needs them.
+package ChessServer;
+
+import chesscore.Game;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Safe to use from any thread.  Looking up a profile that is in memory
+ * doesn't lock anything; reading from or writing to the file, registering
+ * and evicting hold the cache's lock, and eviction also locks each pair it
+ * writes out (see Profile) so nobody can pair with or log in as a profile
+ * halfway out the door.  Least recently used is tracked with a counter
+ * stamped on each profile instead of an access-ordered map, so lookups
+ * don't need to lock the map to reorder it.
+ *
+ * The index of where each name's record starts is kept for every
+ * registered player, online or not.  A name, its Long and the map entry
+ * come to roughly 100 bytes on a 64-bit JVM, so a million players cost
+ * about 100 MB of heap however few of them are online; the profiles
+ * themselves only cost for the capacity kept in memory.  Reloading the
+ * index, as every save does, builds a new one on the side and swaps it in,
+ * so contains() and names() never see it half built.
+ */
+public class ProfileCache {
+
+	private static final String CRLF = "\r\n";
+	private static final int SAMPLE = 8; //Offline profiles trim compares for each one it evicts
+	private final File file;
+	private final int capacity; //How many profiles we try to keep in memory
+	private final ConcurrentHashMap<String, Profile> resident;
+	//Where the latest record for each name starts in the file.  Replaced whole by load(), under the cache's lock.
+	private volatile ConcurrentHashMap<String, Long> index;
+	private final AtomicLong uses; //Stamped on profiles as they are used
+	private volatile Ratings ratings; //Where the current ratings live, if anywhere
+	private Iterator<Profile> hand; //Where trim stopped looking, under the cache's lock
+
+	public ProfileCache(String fileName, int capacity) {
+		file = new File(fileName);
+		this.capacity = capacity;
+		resident = new ConcurrentHashMap<>();
+		index = new ConcurrentHashMap<>();
+		uses = new AtomicLong();
+	}
+
+	private void touch(Profile profile) {
+		profile.lastUsed = uses.incrementAndGet();
+	}
+
+	//Ratings read from the file go here, and profiles read in get their rating from here.
+	public synchronized void setRatings(Ratings r) {
+		ratings = r;
+	}
+
+	/*
+	 * Scans the file and remembers where each record starts, without building
+	 * any profiles.  Evicted profiles are appended to the end of the file, so
+	 * a later record for a name replaces an earlier one, rating included.
+	 */
+	public synchronized void load() {
+		load(false);
+	}
+
+	/*
+	 * Ratings go to Ratings once the whole file is read, so only the latest
+	 * record for each name counts.  Unless replaceRatings, names Ratings
+	 * already has keep theirs: after a save, Ratings is as new as the file
+	 * or newer.
+	 */
+	private void load(boolean replaceRatings) {
+		ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+		if (!file.exists()) {
+			this.index = index;
+			return;
+		}
+		HashMap<String, Integer> latest = new HashMap<>();
+		try (LineReader lr = new LineReader(new FileInputStream(file), 0)) {
+			while (true) {
+				long offset = lr.position;
+				String line = lr.readLine();
+				if (line == null) {
+					break;
+				}
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] data = line.split("\t");
+				index.put(data[0], offset);
+				loadRating(data, 3, latest);
+				int status = Integer.parseInt(data[2]);
+				if (status != 0) {
+					String[] oppData = lr.readLine().split("\t");
+					index.put(oppData[0], offset);
+					loadRating(oppData, 2, latest);
+				}
+				if (status == 2) {
+					for (int i = 0; i < 9; i++) {
+						lr.readLine();
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.error("reading profiles failed", "file", file, "error", e);
+		}
+		this.index = index;
+		if (ratings != null) {
+			for (Map.Entry<String, Integer> entry : latest.entrySet()) {
+				if (replaceRatings) {
+					ratings.set(entry.getKey(), entry.getValue());
+				} else {
+					ratings.load(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	//Files from before ratings have no rating column.
+	private static void loadRating(String[] data, int column, HashMap<String, Integer> latest) {
+		latest.put(data[0], data.length > column ? Integer.parseInt(data[column]) : Ratings.DEFAULT);
+	}
+
+	/*
+	 * Rewrites the file with one record per pair: resident profiles from
+	 * memory, the rest copied from their latest record.  This also drops the
+	 * stale records left behind by evictions.
+	 */
+	public synchronized void save() {
+		File temp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(temp)); Snapshot snapshot = snapshot()) {
+			snapshot.write(bw);
+		} catch (IOException | RuntimeException e) {
+			Log.error("saving profiles failed", "file", file, "error", e);
+			return;
+		}
+		file.delete();
+		if (!temp.renameTo(file)) {
+			Log.error("saving profiles failed, could not replace the file", "file", file);
+			return;
+		}
+		load();
+	}
+
+	//Replaces the file and everything in memory with a snapshot in the file's format, for a standby.
+	public synchronized void restore(String snapshot) throws IOException {
+		try (Writer w = new BufferedWriter(new FileWriter(file))) {
+			w.write(snapshot);
+		}
+		resident.clear();
+		load(true); //The primary's ratings, not whatever we had
+	}
+
+	/*
+	 * Everything save() writes, for a standby as well as the file, as of now.
+	 * Profiles in memory are written here and now; the rest are only looked
+	 * up in the index, and Snapshot.write() copies them later, in one pass
+	 * over the file as it is now, without holding anything up.  Profiles
+	 * evicted after this are appended past the records it reads, and a
+	 * save() replaces the file, which the snapshot keeps open.
+	 */
+	public synchronized Snapshot snapshot() throws IOException {
+		StringWriter memory = new StringWriter();
+		HashSet<String> written = new HashSet<>();
+		for (Profile profile : resident.values()) {
+			final StringWriter record = new StringWriter();
+			final String[] names = new String[2];
+			Profile.withPair(profile, new Profile.PairAction() {
+				@Override
+				public boolean apply(Profile player, Profile other) {
+					if (player.color && (other == null || !other.guest)) { //The white/requester side writes the pair
+						return false;
+					}
+					writeRecord(record, player);
+					names[0] = player.name;
+					names[1] = other == null || other.guest ? null : other.name;
+					return true;
+				}
+			});
+			if (names[0] != null) {
+				memory.write(record.toString());
+				written.add(names[0]);
+				if (names[1] != null) {
+					written.add(names[1]);
+				}
+			}
+		}
+		TreeSet<Long> offsets = new TreeSet<>(); //Both of a pair point at the same record
+		for (Map.Entry<String, Long> entry : index.entrySet()) {
+			if (!written.contains(entry.getKey())) {
+				offsets.add(entry.getValue());
+			}
+		}
+		InputStream in = offsets.isEmpty() ? null : new FileInputStream(file);
+		return new Snapshot(memory.toString(), offsets, in, ratings);
+	}
+
+	//The profiles as they were when snapshot() was called.  Close it if write() isn't called.
+	public static class Snapshot implements Closeable {
+
+		private final String memory;
+		private final TreeSet<Long> offsets;
+		private final InputStream in;
+		private final Ratings ratings;
+
+		Snapshot(String memory, TreeSet<Long> offsets, InputStream in, Ratings ratings) {
+			this.memory = memory;
+			this.offsets = offsets;
+			this.in = in;
+			this.ratings = ratings;
+		}
+
+		//Writes the profiles in memory, then copies each record from the file, with its rating from Ratings.
+		public void write(Writer w) throws IOException {
+			w.write(memory);
+			if (in == null) {
+				return;
+			}
+			try (LineReader lr = new LineReader(in, 0)) {
+				for (long offset : offsets) {
+					while (lr.position < offset) {
+						if (lr.readLine() == null) {
+							throw new IOException("Profile file ends before a record at " + offset);
+						}
+					}
+					String[] data = lr.readLine().split("\t");
+					int status = Integer.parseInt(data[2]);
+					w.write(data[0] + "\t" + data[1] + "\t" + status + "\t" + rating(data, 3) + CRLF);
+					if (status != 0) {
+						String[] oppData = lr.readLine().split("\t");
+						w.write(oppData[0] + "\t" + oppData[1] + "\t" + rating(oppData, 2) + CRLF);
+					}
+					for (int i = 0; status == 2 && i < 9; i++) {
+						w.write(lr.readLine() + CRLF);
+					}
+				}
+			}
+		}
+
+		private int rating(String[] data, int column) {
+			if (ratings != null) {
+				return ratings.rating(data[0]);
+			}
+			return data.length > column ? Integer.parseInt(data[column]) : Ratings.DEFAULT;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	//Returns the profile, reading it in from the file if it isn't in memory.
+	public Profile get(String name) {
+		Profile profile = resident.get(name);
+		if (profile != null) {
+			touch(profile);
+			return profile;
+		}
+		synchronized (this) {
+			profile = resident.get(name); //Someone may have read it in while we waited
+			Long offset = profile == null ? index.get(name) : null;
+			if (offset != null) {
+				try {
+					profile = readRecord(offset);
+				} catch (IOException | RuntimeException e) {
+					Log.error("reading profiles failed", "file", file, "error", e);
+					return null;
+				}
+				resident.put(profile.name, profile);
+				if (profile.opp != null) {
+					resident.put(profile.opp.name, profile.opp);
+				}
+				profile = resident.get(name);
+				touch(profile);
+				trim(name);
+			}
+			return profile;
+		}
+	}
+
+	//Returns the profile only if it is already in memory.
+	public Profile peek(String name) {
+		return resident.get(name);
+	}
+
+	public boolean contains(String name) {
+		return resident.containsKey(name) || index.containsKey(name);
+	}
+
+	//Adds a new player.  False if the name is taken, checked and added in one step.
+	public synchronized boolean register(Profile profile) {
+		if (contains(profile.name)) {
+			return false;
+		}
+		resident.put(profile.name, profile);
+		touch(profile);
+		trim(profile.name);
+		return true;
+	}
+
+	//Every name, registered or in memory.  Doesn't lock, so it can be a moment out of date.
+	public SortedSet<String> names() {
+		TreeSet<String> names = new TreeSet<>(index.keySet());
+		names.addAll(resident.keySet());
+		return names;
+	}
+
+	//A copy of the profiles currently in memory.
+	public ArrayList<Profile> resident() {
+		return new ArrayList<>(resident.values());
+	}
+
+	public int residentCount() {
+		return resident.size();
+	}
+
+	//Called when a player logs off, since they might be evictable now.
+	public synchronized void trim() {
+		trim(null);
+	}
+
+	/*
+	 * Writes out least recently used profiles until we are back under
+	 * capacity.  Only offline profiles whose opponent is also offline can go,
+	 * and a pair always goes together because they point at each other.
+	 * The name being looked up right now is never evicted.
+	 *
+	 * Sorting every resident profile each time would be n log n under the
+	 * lock, so like the counter this is approximate: each eviction takes the
+	 * least recently used of a few offline profiles, picked up where the last
+	 * look stopped, and a call gives up after looking at a few per profile
+	 * it was meant to evict.  Whatever it couldn't evict goes on a later call.
+	 */
+	private void trim(final String keep) {
+		if (resident.size() <= capacity) {
+			return;
+		}
+		try (FileOutputStream fos = new FileOutputStream(file, true);
+				BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos))) {
+			final long[] offset = {file.length()};
+			int budget = (resident.size() - capacity) * SAMPLE * 4;
+			while (resident.size() > capacity && budget > 0) {
+				Profile oldest = null;
+				for (int found = 0; found < SAMPLE && budget > 0; budget--) {
+					Profile next = nextResident();
+					if (next == null) {
+						break;
+					}
+					Profile other = next.opp;
+					if (next.client == null && (other == null || other.client == null) && !next.name.equals(keep)) {
+						found++;
+						if (oldest == null || next.lastUsed < oldest.lastUsed) {
+							oldest = next;
+						}
+					}
+				}
+				if (oldest == null) {
+					break;
+				}
+				final StringWriter record = new StringWriter();
+				boolean evicted = Profile.withPair(oldest, new Profile.PairAction() {
+					@Override
+					public boolean apply(Profile player, Profile other) {
+						if (player.name.equals(keep) || (other != null && other.name.equals(keep))
+								|| player.client != null || (other != null && other.client != null)
+								|| !resident.containsKey(player.name)) {
+							return false;
+						}
+						writeRecord(record, player.color && other != null ? other : player); //The white/requester side writes the pair
+						index.put(player.name, offset[0]);
+						resident.remove(player.name);
+						if (other != null) {
+							index.put(other.name, offset[0]);
+							resident.remove(other.name);
+						}
+						return true;
+					}
+				});
+				if (evicted) {
+					bw.write(record.toString());
+					offset[0] += record.toString().getBytes().length;
+				}
+			}
+		} catch (IOException e) {
+			Log.error("saving profiles failed", "file", file, "error", e);
+		}
+	}
+
+	//The next resident profile after the last one trim looked at, going round again at the end.  Null if there are none.
+	private Profile nextResident() {
+		if (hand == null || !hand.hasNext()) {
+			hand = resident.values().iterator();
+			if (!hand.hasNext()) {
+				return null;
+			}
+		}
+		return hand.next();
+	}
+
+	//Reads the record starting at this offset, linking up the opponent and game if there are any.
+	private Profile readRecord(long offset) throws IOException {
+		try (LineReader lr = new LineReader(new FileInputStream(file), offset)) {
+			String[] data = lr.readLine().split("\t");
+			Profile profile = new Profile(data[0], data[1]);
+			profile.rating = readRating(data, 3);
+			int status = Integer.parseInt(data[2]);
+
+			if (status != 0) {
+				String[] oppData = lr.readLine().split("\t");
+				Profile opp = new Profile(oppData[0], oppData[1]);
+				opp.rating = readRating(oppData, 2);
+				Profile.pair(profile, opp);
+				if (status == 2) {
+					StringBuilder gameData = new StringBuilder();
+					for (int i = 0; i < 9; i++) {
+						gameData.append(lr.readLine());
+					}
+					profile.startGame(new Game(gameData.toString()), false);
+				}
+			}
+			return profile;
+		}
+	}
+
+	private int readRating(String[] data, int column) {
+		if (ratings != null) {
+			return ratings.rating(data[0]);
+		}
+		return data.length > column ? Integer.parseInt(data[column]) : Ratings.DEFAULT;
+	}
+
+	//Ratings has the final word, not the copy the ratings thread refreshes on the profile.
+	private int savedRating(Profile profile) {
+		Ratings r = ratings;
+		return r == null ? profile.rating : r.rating(profile.name);
+	}
+
+	/*
+	 * Writes a profile and its opponent as one record.  Should be called on the
+	 * profile whose color is false, so the opponent comes back as black.
+	 * A guest from another node isn't ours to save, so their opponent is
+	 * written on their own and comes back free.
+	 */
+	private void writeRecord(StringWriter w, Profile profile) {
+		int status = 0;
+		if (profile.opp != null && !profile.opp.guest) {
+			status = 1;
+			if (profile.game != null) {
+				status = 2;
+			}
+		}
+		w.write(profile.name + "\t" + profile.password + "\t" + status + "\t" + savedRating(profile) + CRLF);
+		if (status != 0) {
+			w.write(profile.opp.name + "\t" + profile.opp.password + "\t" + savedRating(profile.opp) + CRLF);
+		}
+		if (status == 2) {
+			String gameState = profile.game.record(); //The last line carries the move history
+			for (int j = 0; j < 8; j++) {
+				w.write(gameState.substring(8 * j, 8 * (j + 1)) + CRLF);
+			}
+			w.write(gameState.substring(64) + CRLF);
+		}
+	}
+
+	//BufferedReader can't tell us where a line started, so this counts bytes as it goes.
+	private static class LineReader implements Closeable {
+
+		private final InputStream in;
+		private long position;
+
+		LineReader(InputStream is, long offset) throws IOException {
+			long skipped = 0;
+			while (skipped < offset) {
+				long n = is.skip(offset - skipped);
+				if (n <= 0) {
+					break;
+				}
+				skipped += n;
+			}
+			in = new BufferedInputStream(is);
+			position = skipped;
+		}
+
+		String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1) {
+				position++;
+				if (c == '\n') {
+					break;
+				}
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return (c == -1 && line.length() == 0) ? null : line.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Elo ratings for every player, and a leaderboard.
+ *
+ * Results are queued by the main loop and applied in batches by a worker
+ * thread, so the dispatcher never waits on them.  This class is the final
+ * word on everyone's rating: Profile.rating is a copy for showing, refreshed
+ * when the profile is read in or logs in and after each batch, and the
+ * profile file is written from here, not from the copy.
+ *
+ * The leaderboard is a Fenwick tree counting players at each rating, so
+ * finding a player's rank or the player at a given rank is O(log R) where
+ * R is the number of possible ratings, plus a TreeMap from rating to names
+ * for listing.
+ */
+package ChessServer;
+
+import java.util.*;
+
+public class Ratings implements Runnable {
+
+	public static final int DEFAULT = 1500;
+	private static final int MAX = 4000; //Ratings are kept between 0 and MAX - 1
+	private static final int K = 32;
+	private static final int INTERVAL = 50; //Milliseconds between batches
+	public static final int PAGE_SIZE = 50;
+
+	private static class Result {
+
+		final Profile white;
+		final Profile black;
+		final double score; //For white: 1, 0.5 or 0
+
+		Result(Profile white, Profile black, double score) {
+			this.white = white;
+			this.black = black;
+			this.score = score;
+		}
+	}
+
+	private final HashMap<String, Integer> ratings;
+	private final int[] tree; //Fenwick tree, tree[i] covers counts of ratings ending at i - 1
+	private final TreeMap<Integer, TreeSet<String>> byRating;
+	private final Queue<Result> results;
+	private long batches;
+	private long applied;
+	private volatile boolean running;
+
+	public Ratings() {
+		ratings = new HashMap<>();
+		tree = new int[MAX + 1];
+		byRating = new TreeMap<>();
+		results = new LinkedList<>();
+		running = true;
+	}
+
+	public synchronized int rating(String name) {
+		Integer rating = ratings.get(name);
+		return rating == null ? DEFAULT : rating;
+	}
+
+	//Sets a rating without playing a game, for loading and registering.
+	public synchronized void set(String name, int rating) {
+		Integer old = ratings.put(name, clamp(rating));
+		if (old != null) {
+			remove(name, old);
+		}
+		insert(name, clamp(rating));
+	}
+
+	//Only for names we haven't heard of, so a stale record can't undo a newer result.
+	public synchronized void load(String name, int rating) {
+		if (!ratings.containsKey(name)) {
+			set(name, rating);
+		}
+	}
+
+	private static int clamp(int rating) {
+		return Math.max(0, Math.min(MAX - 1, rating));
+	}
+
+	private void insert(String name, int rating) {
+		for (int i = rating + 1; i <= MAX; i += i & -i) {
+			tree[i]++;
+		}
+		TreeSet<String> names = byRating.get(rating);
+		if (names == null) {
+			names = new TreeSet<>();
+			byRating.put(rating, names);
+		}
+		names.add(name);
+	}
+
+	private void remove(String name, int rating) {
+		for (int i = rating + 1; i <= MAX; i += i & -i) {
+			tree[i]--;
+		}
+		TreeSet<String> names = byRating.get(rating);
+		names.remove(name);
+		if (names.isEmpty()) {
+			byRating.remove(rating);
+		}
+	}
+
+	//How many players are rated at or below this rating.
+	private int countAtMost(int rating) {
+		int count = 0;
+		for (int i = rating + 1; i > 0; i -= i & -i) {
+			count += tree[i];
+		}
+		return count;
+	}
+
+	public synchronized int size() {
+		return ratings.size();
+	}
+
+	//1 for the best player.  Players with the same rating share a rank.
+	public synchronized int rank(String name) {
+		return ratings.size() - countAtMost(rating(name)) + 1;
+	}
+
+	//Queues up a finished game.  score is from white's side: 1, 0.5 or 0.
+	public void record(Profile white, Profile black, double score) {
+		synchronized (results) { //Not the main lock, so this never waits for a batch
+			results.offer(new Result(white, black, score));
+		}
+	}
+
+	//Applies every queued result, in the order the games ended.
+	void applyBatch() {
+		ArrayList<Result> batch;
+		synchronized (results) {
+			if (results.isEmpty()) {
+				return;
+			}
+			batch = new ArrayList<>(results);
+			results.clear();
+		}
+		synchronized (this) {
+			applyBatch(batch);
+		}
+		//Outside our lock: other threads take a profile's lock and then ours, never the other way round
+		for (Result result : batch) {
+			refresh(result.white);
+			refresh(result.black);
+		}
+	}
+
+	private void applyBatch(List<Result> batch) {
+		for (Result result : batch) {
+			//A guest's rating belongs to their own node, which rates the game too.  Just keep their copy current.
+			int white = result.white.guest ? result.white.rating : rating(result.white.name);
+			int black = result.black.guest ? result.black.rating : rating(result.black.name);
+			double expected = 1 / (1 + Math.pow(10, (black - white) / 400.0));
+			int change = (int) Math.round(K * (result.score - expected));
+			rate(result.white, white + change);
+			rate(result.black, black - change);
+			applied++;
+		}
+		batches++;
+	}
+
+	private void rate(Profile player, int rating) {
+		if (player.guest) {
+			player.rating = clamp(rating); //Not locked: we hold our own lock here, see applyBatch()
+		} else {
+			set(player.name, rating);
+		}
+	}
+
+	/*
+	 * Copies the current rating onto the profile.  Under the profile's lock
+	 * and read inside it, so an older copy can never land after a newer one.
+	 */
+	public void refresh(Profile player) {
+		if (!player.guest) {
+			synchronized (player) {
+				player.rating = rating(player.name);
+			}
+		}
+	}
+
+	//The "leaderboard" message: up to PAGE_SIZE players from this rank on, best first.
+	public synchronized String page(int offset) {
+		offset = Math.max(0, offset);
+		StringBuilder sb = new StringBuilder(32 + PAGE_SIZE * 16);
+		sb.append("leaderboard ").append(offset).append(' ').append(ratings.size());
+		int skip = offset;
+		int count = 0;
+		//Jump straight to the rating that holds the player at this offset.
+		int start = MAX - 1;
+		if (offset < ratings.size()) {
+			int below = ratings.size() - offset; //Players at or below the one we want
+			int low = 0;
+			int high = MAX - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (countAtMost(mid) >= below) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			start = low;
+			skip = offset - (ratings.size() - countAtMost(start));
+		}
+		for (Map.Entry<Integer, TreeSet<String>> entry : byRating.headMap(start, true).descendingMap().entrySet()) {
+			for (String name : entry.getValue()) {
+				if (skip > 0) {
+					skip--;
+					continue;
+				}
+				if (count++ == PAGE_SIZE) {
+					return sb.append("\r\n").toString();
+				}
+				sb.append('\t').append(name).append(' ').append(entry.getKey());
+			}
+		}
+		return sb.append("\r\n").toString();
+	}
+
+	public synchronized String report() {
+		int waiting;
+		synchronized (results) {
+			waiting = results.size();
+		}
+		return ratings.size() + " rated players, " + applied + " results in " + batches
+				+ " batches, " + waiting + " waiting.";
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			applyBatch();
+			try {
+				Thread.sleep(INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		applyBatch();
+	}
+}
@@ -8,14 +8,15 @@ public class Receiver implements Runnable {
 
 	private Queue<Socket> connections;
 	private ServerSocket server;
-	private final int port = 1729;
+	private final int port = Integer.getInteger("port", 1729);
+	private volatile boolean running = true;
 
 	public Receiver() {
 		connections = new LinkedList<>();
 		try {
 			server = new ServerSocket(port);
 		} catch (Exception e) {
-			System.out.println("Unable to create receiver: " + e);
+			Log.error("creating receiver failed", "port", port, "error", e);
 		}
 	}
 
@@ -30,16 +31,37 @@ public class Receiver implements Runnable {
 	private void acceptConnections() {
 
 		Socket incomingConnection = null;
-		while (true) {
+		while (running) {
 			try {
 				incomingConnection = server.accept();
-				System.out.println("Incoming connection!");
+				Log.debug("incoming connection", "from", incomingConnection.getRemoteSocketAddress());
 				synchronized (this) {
 					connections.offer(incomingConnection);
 				}
 			} catch (IOException e) {
-				System.out.println("Unable to esablish incoming connection.  " + e);
+				if (running) {
+					Log.warn("accepting connection failed", "error", e);
+				}
+			}
+		}
+	}
+
+	//Stops accepting, and closes connections that came in but weren't picked up.
+	public void close() {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+			Log.warn("closing receiver failed", "error", e);
+		}
+		synchronized (this) {
+			for (Socket socket : connections) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
 			}
+			connections.clear();
 		}
 	}
 
@@ -0,0 +1,284 @@
+/*
+ * Streams what changes on this server to a standby, see Standby.
+ *
+ * Run with -DreplicationPort=PORT to let a standby connect.  The port only
+ * listens on the loopback address unless -DreplicationHost=ADDRESS says
+ * otherwise, and since a standby is sent every profile, passwords and all,
+ * one listening elsewhere should have -DreplicationSecret=SECRET set on both
+ * sides, see Handshake.  When a standby connects and answers, the main loop
+ * takes a snapshot of every profile (see ProfileCache.snapshot, which
+ * leaves reading the profile file to the sender thread), and from then on
+ * each change the main loop makes is queued as a compact event:
+ *   register NAME PASSWORD      pair REQUESTER REQUESTED   unpair NAME
+ *   start NAME COLOR            move NAME MOVE              finish NAME RESULT
+ *   end NAME                    rate NAME OPP OPP_RATING SCORE
+ *   clock NAME WHITE_MS BLACK_MS
+ * (tab separated, rate for a game rated on another node, clock whenever a
+ * clock starts or switches and for each running clock after the snapshot,
+ * see Clocks) and written by a sender thread after the snapshot, so the
+ * main loop never waits on the network or the disk.  A frame is an int
+ * length and that many bytes of UTF-8: SEQUENCE [tab] MILLIS [tab] EVENT,
+ * where the snapshot is sequence 0.
+ *
+ * The standby sends back the sequence number of each batch it has applied.
+ * The lag is how long ago the oldest event it hasn't confirmed was made, 0
+ * when it is caught up.  A standby that falls behind by more than MAX_QUEUE
+ * events, or whose connection breaks, is dropped and has to connect again
+ * for a new snapshot.  A standby that connects while another is attached
+ * and confirming is turned away rather than taking its place.
+ *
+ * Like Metrics this is static, so anything can record without being handed
+ * anything, and recording with no standby attached costs a volatile read.
+ */
+package ChessServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Replication {
+
+	public static final int PORT = Integer.getInteger("replicationPort", 0);
+	static final byte[] SECRET = Handshake.secret("replicationSecret");
+	private static final int MAX_QUEUE = 100000;
+	private static final long STALLED = 30000; //Milliseconds without a confirmation before a standby can be replaced
+
+	private static final AtomicReference<Socket> waiting = new AtomicReference<>(); //Connected, but not sent a snapshot yet
+	private static volatile Link link; //The standby being streamed to
+	private static long sequence; //Only the main loop records
+	private static final AtomicLong events = new AtomicLong();
+
+	private Replication() {
+	}
+
+	//One standby's connection: what is queued for it and what it hasn't confirmed.
+	private static class Link {
+
+		final Socket socket;
+		final DataOutputStream out;
+		final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUE);
+		final ConcurrentLinkedQueue<long[]> unconfirmed = new ConcurrentLinkedQueue<>(); //{sequence, millis}
+		volatile boolean broken;
+
+		Link(Socket socket) throws IOException {
+			this.socket = socket;
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		}
+
+		void offer(long seq, long time, String event) {
+			byte[] frame = (seq + "\t" + time + "\t" + event).getBytes(StandardCharsets.UTF_8);
+			if (!queue.offer(frame)) {
+				fail(new IOException("standby fell " + MAX_QUEUE + " events behind"));
+				return;
+			}
+			unconfirmed.offer(new long[]{seq, time});
+		}
+
+		void fail(Exception e) {
+			if (!broken) {
+				broken = true;
+				Log.warn("standby dropped", "error", e);
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		//Writes the snapshot, however long the profile file takes to read, then the events queued meanwhile.
+		void send(ProfileCache.Snapshot snapshot, long time) {
+			StringWriter text = new StringWriter();
+			try (ProfileCache.Snapshot s = snapshot) {
+				s.write(text);
+				byte[] frame = ("0\t" + time + "\tsnapshot\t" + text).getBytes(StandardCharsets.UTF_8);
+				out.writeInt(frame.length);
+				out.write(frame);
+				out.flush();
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+				return;
+			}
+			Log.info("standby sent snapshot", "bytes", text.getBuffer().length(), "queued", queue.size());
+			send();
+		}
+
+		//Writes frames as they come, flushing whenever the queue runs dry.
+		void send() {
+			try {
+				while (!broken) {
+					byte[] frame = queue.poll(1, TimeUnit.SECONDS);
+					if (frame == null) {
+						continue;
+					}
+					out.writeInt(frame.length);
+					out.write(frame);
+					if (queue.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				fail(e);
+			}
+		}
+
+		//Reads back the sequence numbers the standby has applied.
+		void confirm() {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+				while (!broken) {
+					long applied = in.readLong();
+					long[] head;
+					while ((head = unconfirmed.peek()) != null && head[0] <= applied) {
+						unconfirmed.poll();
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	}
+
+	//Starts listening for a standby, if there is a port for one.
+	public static void start() {
+		if (PORT <= 0) {
+			return;
+		}
+		final ServerSocket server;
+		String host = System.getProperty("replicationHost");
+		try {
+			server = new ServerSocket(PORT, 50, host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host));
+		} catch (IOException e) {
+			Log.error("creating replication port failed", "port", PORT, "error", e);
+			return;
+		}
+		if (SECRET == null && !server.getInetAddress().isLoopbackAddress()) {
+			Log.warn("replication port open without a secret", "address", server.getLocalSocketAddress());
+		}
+		daemon(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Socket socket = server.accept();
+						socket.setTcpNoDelay(true);
+						if (!Handshake.challenge(socket, SECRET)) {
+							Log.warn("standby refused", "from", socket.getRemoteSocketAddress(), "reason", "wrong secret");
+							socket.close();
+							continue;
+						}
+						Log.info("standby connected", "from", socket.getRemoteSocketAddress());
+						Socket previous = waiting.getAndSet(socket);
+						if (previous != null) { //The main loop hadn't got to it yet
+							previous.close();
+						}
+					} catch (IOException e) {
+						Log.warn("accepting standby failed", "error", e);
+					}
+				}
+			}
+		});
+		Metrics.gauge("Replication lag ms", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return lag();
+			}
+		});
+		Metrics.gauge("Replication events", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return events.get();
+			}
+		});
+	}
+
+	/*
+	 * Sends a standby that just connected a snapshot, and streams to it from
+	 * then on.  Called by the main loop between commands, so the snapshot
+	 * and the events after it line up.  Only the profiles in memory are
+	 * written here; the sender thread reads the rest from the file.
+	 */
+	public static void attach(ProfileCache profiles, Clocks clocks) {
+		if (waiting.get() == null) { //Every pass, so just a read when nobody is connecting
+			return;
+		}
+		Socket socket = waiting.getAndSet(null);
+		Link old = link;
+		if (old != null && !old.broken && lag() < STALLED) {
+			Log.warn("standby refused", "from", socket.getRemoteSocketAddress(), "reason", "one is attached");
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		if (old != null) {
+			old.fail(new IOException("replaced by a new standby"));
+		}
+		final Link next;
+		final ProfileCache.Snapshot snapshot;
+		try {
+			next = new Link(socket);
+			snapshot = profiles.snapshot();
+		} catch (IOException e) {
+			Log.warn("snapshot for standby failed", "error", e);
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		final long time = System.currentTimeMillis();
+		next.unconfirmed.offer(new long[]{0, time});
+		link = next;
+		clocks.replicate();
+		Log.info("standby attached", "sequence", sequence);
+		daemon(new Runnable() {
+			@Override
+			public void run() {
+				next.send(snapshot, time);
+			}
+		});
+		daemon(new Runnable() {
+			@Override
+			public void run() {
+				next.confirm();
+			}
+		});
+	}
+
+	private static void daemon(Runnable runnable) {
+		Thread thread = new Thread(runnable, "replication");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Queues an event for the standby, if there is one.  Main loop only.
+	public static void record(String type, String... fields) {
+		Link current = link;
+		if (current == null) {
+			return;
+		}
+		if (current.broken) {
+			link = null;
+			return;
+		}
+		StringBuilder event = new StringBuilder(type);
+		for (String field : fields) {
+			event.append('\t').append(field);
+		}
+		current.offer(++sequence, System.currentTimeMillis(), event.toString());
+		events.incrementAndGet();
+	}
+
+	//Milliseconds since the oldest event the standby hasn't confirmed, or -1 with no standby.
+	public static long lag() {
+		Link current = link;
+		if (current == null || current.broken) {
+			return -1;
+		}
+		long[] head = current.unconfirmed.peek();
+		return head == null ? 0 : System.currentTimeMillis() - head[1];
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * The front of a cluster: players connect here and each session is passed
+ * through to the node that owns the player, see Cluster and HashRing.
+ *
+ * The router reads what the player sends a line at a time, and the first
+ * login or register line decides the node.  It connects there, drops the
+ * node's greeting (the player already got one from us) and from then on
+ * copies both ways.  A login for a name on another node, after a failed
+ * one, moves the session there.  What the node sends is copied as it comes
+ * without looking at it.
+ *
+ * Usage: Router [-port P] -nodes HOST:PORT,HOST:PORT,...
+ * where the nodes are the players' ports of each node, in the same order as
+ * their -Dcluster list.
+ */
+package ChessServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class Router {
+
+	private static final String CRLF = "\r\n";
+	private static final String USAGE = "Usage: Router [-port P] -nodes HOST:PORT,HOST:PORT,...";
+
+	private final List<InetSocketAddress> nodes;
+	private final HashRing ring;
+
+	public Router(List<InetSocketAddress> nodes) {
+		this.nodes = nodes;
+		ring = new HashRing(nodes.size());
+	}
+
+	//One player's connection and the node it currently goes to.
+	private class Session implements Runnable {
+
+		private final Socket player;
+		private final OutputStream toPlayer;
+		private volatile Socket node;
+		private OutputStream toNode;
+		private int current = -1;
+
+		Session(Socket player) throws IOException {
+			this.player = player;
+			toPlayer = player.getOutputStream();
+		}
+
+		@Override
+		public void run() {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(player.getInputStream(),
+					StandardCharsets.UTF_8))) {
+				send("svrmsg Please log in or register." + CRLF);
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("login ") || line.startsWith("register ") || line.startsWith("resume ")) {
+						String name = line.substring(line.indexOf(' ') + 1).split("\t")[0];
+						try {
+							route(ring.owner(name));
+						} catch (IOException e) {
+							Log.warn("node unreachable", "node", ring.owner(name), "error", e);
+							send("svrmsg That server is not available, try again later." + CRLF);
+							continue;
+						}
+					}
+					if (toNode == null) {
+						send("svrmsg Please log in or register." + CRLF);
+						continue;
+					}
+					toNode.write((line + CRLF).getBytes(StandardCharsets.UTF_8));
+					toNode.flush();
+				}
+			} catch (IOException e) {
+				Log.debug("router session ended", "error", e);
+			} finally {
+				close(node);
+				close(player);
+			}
+		}
+
+		private void send(String message) throws IOException {
+			synchronized (toPlayer) {
+				toPlayer.write(message.getBytes(StandardCharsets.UTF_8));
+				toPlayer.flush();
+			}
+		}
+
+		//Connects to the node unless we're already there.
+		private void route(int next) throws IOException {
+			if (next == current) {
+				return;
+			}
+			Socket old = node;
+			node = null; //So the old copier doesn't hang up on the player
+			toNode = null;
+			current = -1;
+			close(old);
+			Socket socket = new Socket(nodes.get(next).getAddress(), nodes.get(next).getPort());
+			socket.setTcpNoDelay(true);
+			InputStream fromNode = socket.getInputStream();
+			int c;
+			while ((c = fromNode.read()) != -1 && c != '\n') { //The node's greeting
+			}
+			node = socket;
+			toNode = new BufferedOutputStream(socket.getOutputStream());
+			current = next;
+			copy(socket, fromNode);
+		}
+
+		//Copies from the node to the player until the node hangs up.
+		private void copy(final Socket socket, final InputStream fromNode) {
+			Thread copier = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						int n;
+						while ((n = fromNode.read(buffer)) != -1) {
+							synchronized (toPlayer) {
+								toPlayer.write(buffer, 0, n);
+								toPlayer.flush();
+							}
+						}
+					} catch (IOException e) {
+					}
+					if (node == socket) { //The node went away, not us moving on
+						close(player);
+					}
+				}
+			}, "router");
+			copier.setDaemon(true);
+			copier.start();
+		}
+	}
+
+	private static void close(Socket socket) {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	public void listen(int port) throws IOException {
+		try (ServerSocket server = new ServerSocket(port)) {
+			Log.info("router listening", "port", port, "nodes", nodes.size());
+			while (true) {
+				Socket player = server.accept();
+				player.setTcpNoDelay(true);
+				new Thread(new Session(player), "router").start();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 1729;
+		ArrayList<InetSocketAddress> nodes = new ArrayList<>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+				case "-port":
+					port = Integer.parseInt(args[i + 1]);
+					break;
+				case "-nodes":
+					for (String node : args[i + 1].split(",")) {
+						int colon = node.lastIndexOf(':');
+						nodes.add(new InetSocketAddress(node.substring(0, colon),
+								Integer.parseInt(node.substring(colon + 1))));
+					}
+					break;
+				default:
+					System.out.println(USAGE);
+					return;
+			}
+		}
+		if (nodes.isEmpty()) {
+			System.out.println(USAGE);
+			return;
+		}
+		new Router(nodes).listen(port);
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Stopping the server without losing anything, within a deadline of
+ * -DshutdownTimeout seconds (10 by default).
+ *
+ * Once it starts, the Receiver is closed and clients stop being read, so
+ * the main loop only has to finish the commands already queued; drained()
+ * says when it has, or when its share of the time is up.  finish() then
+ * waits for the Broadcaster to write what it has, writes out the clocks,
+ * and saves the profiles and closes the archive at the same time, since
+ * they are separate files.
+ * Nothing is changing by then, so the snapshot is consistent.
+ *
+ * The time each step took is logged, and when it started is written to
+ * shutdown.txt so the next start can report how long the restart took.
+ */
+package ChessServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Shutdown {
+
+	public static final long TIMEOUT = Integer.getInteger("shutdownTimeout", 10) * 1000L;
+	private static final String MARKER = "shutdown.txt";
+
+	private final long started;
+	private long drained;
+
+	public Shutdown() {
+		started = System.currentTimeMillis();
+	}
+
+	//True once no client has anything queued, or 40% of the time is gone.
+	public boolean drained(List<Client> clients) {
+		boolean queued = false;
+		for (Client client : clients) {
+			if (client.check()) {
+				queued = true;
+				break;
+			}
+		}
+		if (queued && System.currentTimeMillis() < started + TIMEOUT * 4 / 10) {
+			return false;
+		}
+		if (queued) {
+			Log.warn("shutting down with commands still queued");
+		}
+		drained = System.currentTimeMillis();
+		return true;
+	}
+
+	public void finish(Broadcaster broadcaster, Ratings ratings, final ProfileCache profiles,
+			final GameArchive archive, Clocks clocks, List<Client> clients) {
+		long deadline = started + TIMEOUT;
+		if (!broadcaster.drain(started + TIMEOUT * 6 / 10)) {
+			Log.warn("shutting down with broadcasts still queued");
+		}
+		long flushed = System.currentTimeMillis();
+
+		ratings.stop();
+		ratings.applyBatch();
+		clocks.save(ChessServer.CLOCK_FILE);
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		List<Future<?>> saves = new ArrayList<>();
+		saves.add(pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				profiles.save();
+			}
+		}));
+		saves.add(pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				archive.close();
+			}
+		}));
+		for (Future<?> save : saves) {
+			try {
+				save.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				Log.error("final snapshot did not finish in time");
+			} catch (InterruptedException | ExecutionException e) {
+				Log.error("final snapshot failed", "error", e);
+			}
+		}
+		pool.shutdownNow();
+		long saved = System.currentTimeMillis();
+
+		for (Client client : clients) {
+			client.close();
+		}
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(MARKER))) {
+			bw.write(String.valueOf(started));
+		} catch (IOException e) {
+			Log.warn("writing shutdown marker failed", "error", e);
+		}
+		Log.info("server stopped", "drain_ms", drained - started, "flush_ms", flushed - drained,
+				"snapshot_ms", saved - flushed, "total_ms", System.currentTimeMillis() - started);
+		Log.flush();
+	}
+
+	//Logs how long this start took and, if the last run shut down cleanly, how long the server was down.
+	public static void reportStart() {
+		long now = System.currentTimeMillis();
+		long startup = now - ManagementFactory.getRuntimeMXBean().getStartTime();
+		File marker = new File(MARKER);
+		long down = -1;
+		if (marker.exists()) {
+			try (BufferedReader br = new BufferedReader(new FileReader(marker))) {
+				down = now - Long.parseLong(br.readLine().trim());
+			} catch (IOException | NumberFormatException | NullPointerException e) {
+				Log.warn("reading shutdown marker failed", "error", e);
+			}
+			marker.delete(); //A crash won't write a new one, so don't let this one be read twice
+		}
+		if (down >= 0) {
+			Log.info("server started", "startup_ms", startup, "restart_ms", down);
+		} else {
+			Log.info("server started", "startup_ms", startup);
+		}
+	}
+}
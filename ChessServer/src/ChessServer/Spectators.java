@@ -0,0 +1,111 @@
+/*
+ * Who is watching which game.
+ *
+ * Spectators get
+ *   watching WHITE [tab] BLACK [tab] STATE   when they start watching
+ *   wmove MOVE                               after every move
+ *   wover RESULT                             when the game ends
+ * Each move is turned into bytes once and the same array goes to every
+ * spectator through the Broadcaster, so the players never wait on them.
+ * Only used from the main loop, which also queues every message, so a
+ * spectator gets them in the order they happened.
+ *
+ * A spectator too slow to take a move has its backlog full, so the move is
+ * dropped and their board would be off from then on.  They are marked
+ * behind and skipped until their backlog is down to half, and then get a
+ * fresh watching message with the whole position instead of the next move.
+ *
+ * Games are found by white's name, like Clocks, rather than by the Game:
+ * the players' profiles can be evicted and read back in with a new Game
+ * while spectators are still watching.
+ */
+package ChessServer;
+
+import java.util.*;
+
+public class Spectators {
+
+	private static final String CRLF = "\r\n";
+	private final HashMap<String, ArrayList<Client>> watchers; //By white's name
+	private final Broadcaster broadcaster;
+
+	public Spectators(Broadcaster broadcaster) {
+		watchers = new HashMap<>();
+		this.broadcaster = broadcaster;
+	}
+
+	//Starts watching the game the player is in, and sends the position so far.
+	public void watch(Client client, Profile player) {
+		unwatch(client);
+		Profile white = player.color ? player.opp : player;
+		ArrayList<Client> list = watchers.get(white.name);
+		if (list == null) {
+			list = new ArrayList<>();
+			watchers.put(white.name, list);
+		}
+		list.add(client);
+		client.watching = white.name;
+		//Through the broadcaster too, behind anything still queued from another game.
+		client.behind = !broadcaster.send(snapshot(player), client);
+	}
+
+	private static byte[] snapshot(Profile player) {
+		Profile white = player.color ? player.opp : player;
+		return ("watching " + white.name + "\t" + white.opp.name + "\t" + player.game.gameState() + CRLF).getBytes();
+	}
+
+	public void unwatch(Client client) {
+		if (client.watching == null) {
+			return;
+		}
+		ArrayList<Client> list = watchers.get(client.watching);
+		if (list != null) {
+			list.remove(client);
+			if (list.isEmpty()) {
+				watchers.remove(client.watching);
+			}
+		}
+		client.watching = null;
+		client.behind = false;
+	}
+
+	public int count(Profile player) {
+		ArrayList<Client> list = watchers.get(whiteName(player));
+		return list == null ? 0 : list.size();
+	}
+
+	//After the player made a move.
+	public void move(Profile player, String move) {
+		ArrayList<Client> list = watchers.get(whiteName(player));
+		if (list == null) {
+			return;
+		}
+		byte[] message = ("wmove " + move + CRLF).getBytes();
+		byte[] snapshot = null;
+		for (Client client : list) {
+			if (!client.behind) {
+				client.behind = !broadcaster.send(message, client);
+			} else if (client.backlog() <= Client.MAX_BACKLOG / 2) {
+				if (snapshot == null) {
+					snapshot = snapshot(player); //The move is already in it
+				}
+				client.behind = !broadcaster.send(snapshot, client);
+			}
+		}
+	}
+
+	public void end(Profile player, String result) {
+		ArrayList<Client> list = watchers.remove(whiteName(player));
+		if (list != null) {
+			broadcaster.broadcast(("wover " + result + CRLF).getBytes(), list);
+			for (Client client : list) {
+				client.watching = null;
+				client.behind = false;
+			}
+		}
+	}
+
+	private static String whiteName(Profile player) {
+		return player.color ? player.opp.name : player.name;
+	}
+}
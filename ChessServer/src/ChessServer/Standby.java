@@ -0,0 +1,150 @@
+/*
+ * Follows a primary server as a hot standby, see Replication.
+ *
+ * Run with -Dstandby=HOST:PORT, the primary's replication port, and the
+ * same -DreplicationSecret as the primary if it has one.  Instead of
+ * reading its own profile file the server connects there, takes the
+ * snapshot as its profile file and applies each event to its profiles,
+ * ratings and archive the way the primary's main loop did, so games in
+ * progress are current move for move.  It sends back the sequence number
+ * it has applied whenever it runs out of input.
+ *
+ * Until the first snapshot arrives it keeps trying to connect.  After
+ * that, losing the primary means it is gone: follow() saves and returns,
+ * and the server starts listening for players with the current games.
+ * Players reconnect to it and log in as usual, and the clocks of games
+ * carried over go on from where the primary's last clock event left them.
+ */
+package ChessServer;
+
+import chesscore.Game;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class Standby {
+
+	public static final String PRIMARY = System.getProperty("standby");
+	private static final long REPORT_INTERVAL = 10000; //Milliseconds between progress lines in the log
+
+	private final String host;
+	private final int port;
+	private volatile long lag = -1; //How old the last event was when we applied it, in milliseconds
+
+	public Standby(String address) {
+		int colon = address.lastIndexOf(':');
+		host = address.substring(0, colon);
+		port = Integer.parseInt(address.substring(colon + 1));
+		Metrics.gauge("Replication lag ms", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return lag;
+			}
+		});
+	}
+
+	//Applies what the primary sends until it goes away.
+	public void follow(ProfileCache profiles, Ratings ratings, GameArchive archive, Clocks clocks) {
+		long applied = -1;
+		while (true) {
+			try (Socket socket = new Socket(host, port)) {
+				socket.setTcpNoDelay(true);
+				Handshake.answer(socket, Replication.SECRET);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				Log.info("following primary", "primary", host + ":" + port);
+				long reported = System.currentTimeMillis();
+				while (true) {
+					byte[] frame = new byte[in.readInt()];
+					in.readFully(frame);
+					String[] event = new String(frame, StandardCharsets.UTF_8).split("\t", 4);
+					long sequence = Long.parseLong(event[0]);
+					if (sequence == 0) {
+						clocks.clear();
+						profiles.restore(event[3]);
+						Log.info("snapshot applied", "profiles", profiles.names().size());
+					} else if (applied >= 0) {
+						apply(event[2], event.length > 3 ? event[3].split("\t") : new String[0],
+								Long.parseLong(event[1]), profiles, ratings, archive, clocks);
+					}
+					applied = sequence;
+					long now = System.currentTimeMillis();
+					lag = now - Long.parseLong(event[1]);
+					if (in.available() == 0) { //Caught up for now
+						ratings.applyBatch();
+						out.writeLong(applied);
+						out.flush();
+					}
+					if (now - reported > REPORT_INTERVAL) {
+						Log.info("replicating", "sequence", applied, "lag_ms", lag);
+						reported = now;
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				if (applied >= 0) {
+					Log.warn("primary lost, taking over", "sequence", applied, "error", e);
+					ratings.applyBatch();
+					lag = -1;
+					return;
+				}
+				Log.info("waiting for primary", "primary", host + ":" + port, "error", e);
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	//Does what the primary's main loop did.  Names we don't know, like guests from other nodes, are skipped.
+	private static void apply(String type, String[] fields, long time, ProfileCache profiles, Ratings ratings,
+			GameArchive archive, Clocks clocks) {
+		if (type.equals("register")) {
+			Profile n00b = new Profile(fields[0], fields[1]);
+			if (profiles.register(n00b)) {
+				ratings.set(n00b.name, n00b.rating);
+			}
+			return;
+		}
+		Profile player = profiles.get(fields[0]);
+		if (player == null) {
+			return;
+		}
+		switch (type) {
+			case "pair":
+				Profile requested = profiles.get(fields[1]);
+				if (requested != null) {
+					Profile.pair(player, requested);
+				}
+				break;
+			case "unpair":
+				player.unpair();
+				break;
+			case "start":
+				player.startGame(new Game(), fields[1].equals("1"));
+				break;
+			case "move":
+				Game game = player.game;
+				if (game != null) {
+					game.move(Game.parseMove(fields[1])); //The primary checked it
+				}
+				break;
+			case "finish":
+				clocks.stop(player);
+				ChessServer.archiveGame(player, fields[1], archive, ratings);
+				break;
+			case "clock":
+				clocks.set(player, Long.parseLong(fields[1]), Long.parseLong(fields[2]), time);
+				break;
+			case "end":
+				player.endGame();
+				break;
+			case "rate": //A game against a guest, rated on their node
+				ratings.record(player, Profile.guest(fields[1], Integer.parseInt(fields[2])), Double.parseDouble(fields[3]));
+				break;
+			default:
+				Log.warn("unknown replication event", "type", type);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * The console for headless servers: reads commands from standard input, one
+ * per line, and prints what they return.  If standard input closes, as it
+ * does under nohup or a service manager, it just stops reading; the server
+ * keeps going until "exit" or a signal.
+ */
+package ChessServer;
+
+import java.io.*;
+
+public class StdinConsole implements Runnable {
+
+	private final AdminCommands commands;
+
+	public StdinConsole(AdminCommands commands) {
+		this.commands = commands;
+	}
+
+	@Override
+	public void run() {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					System.out.println(commands.execute(line));
+				}
+			}
+		} catch (IOException e) {
+			Log.warn("reading console failed", "error", e);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * A hashed timing wheel: a ring of slots, each covering one tick, holding
+ * the timers due in that tick or in the same slot some turns later.
+ *
+ * Scheduling and cancelling are O(1), since timers are kept in a linked
+ * list per slot, and advancing the wheel only looks at the slots for the
+ * ticks that went by.  Timers further away than one turn of the wheel just
+ * sit in their slot until the turn they are due.  Nothing here runs on its
+ * own thread; whoever owns the wheel calls advance(), so it is not thread
+ * safe.
+ */
+package ChessServer;
+
+import java.util.*;
+
+public class TimingWheel<T> {
+
+	public static final class Timer<T> {
+
+		public final T item;
+		private final long tick; //The tick it is due in
+		private Timer<T> prev;
+		private Timer<T> next;
+		private boolean scheduled;
+
+		private Timer(T item, long tick) {
+			this.item = item;
+			this.tick = tick;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timer<T>[] slots; //Head of each slot's list
+	private final int mask;
+	private long current; //The last tick advance() handled
+	private int size;
+
+	//slotCount is rounded up to a power of two.
+	public TimingWheel(long tickMillis, int slotCount, long now) {
+		int count = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+		this.tickMillis = tickMillis;
+		slots = newSlots(count);
+		mask = count - 1;
+		current = now / tickMillis;
+	}
+
+	//Java can't make an array of Timer<T>, but one of Timer<?> only ever holds what schedule() puts in.
+	@SuppressWarnings("unchecked")
+	private static <T> Timer<T>[] newSlots(int count) {
+		return (Timer<T>[]) new Timer<?>[count];
+	}
+
+	//Due at deadline, in milliseconds like System.currentTimeMillis().  Never fires before the next tick.
+	public Timer<T> schedule(T item, long deadline) {
+		long tick = Math.max(current + 1, (deadline + tickMillis - 1) / tickMillis);
+		Timer<T> timer = new Timer<>(item, tick);
+		int slot = (int) (tick & mask);
+		timer.next = slots[slot];
+		if (timer.next != null) {
+			timer.next.prev = timer;
+		}
+		slots[slot] = timer;
+		timer.scheduled = true;
+		size++;
+		return timer;
+	}
+
+	public void cancel(Timer<T> timer) {
+		if (timer == null || !timer.scheduled) {
+			return;
+		}
+		unlink(timer);
+	}
+
+	private void unlink(Timer<T> timer) {
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			slots[(int) (timer.tick & mask)] = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.prev = null;
+		timer.next = null;
+		timer.scheduled = false;
+		size--;
+	}
+
+	//Removes every timer due by now and adds its item to expired.
+	public void advance(long now, List<T> expired) {
+		long end = now / tickMillis;
+		if (end <= current) {
+			return;
+		}
+		long start = current + 1;
+		if (end - start > mask) { //We fell behind by a whole turn, so every slot is due once
+			start = end - mask;
+		}
+		for (long t = start; t <= end; t++) {
+			Timer<T> timer = slots[(int) (t & mask)];
+			while (timer != null) {
+				Timer<T> next = timer.next;
+				if (timer.tick <= end) {
+					unlink(timer);
+					expired.add(timer.item);
+				}
+				timer = next;
+			}
+		}
+		current = end;
+	}
+
+	public int size() {
+		return size;
+	}
+}